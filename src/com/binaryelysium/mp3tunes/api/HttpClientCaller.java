@@ -8,9 +8,15 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.StatusLine;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.HttpRequestRetryHandler;
@@ -19,13 +25,28 @@ import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.impl.client.BasicResponseHandler;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 
+import org.json.JSONException;
+
 import com.binaryelysium.mp3tunes.api.Session.LoginException;
 import android.util.Log;
 
@@ -55,15 +76,101 @@ public class HttpClientCaller
         }
     }
 
+    //All of our calls go through one pooled connection manager so that metadata pages, album art
+    //and track downloads can reuse keep-alive connections instead of paying for a new TCP (and for
+    //login a new TLS) handshake on every request.
+    private static final int MAX_TOTAL_CONNECTIONS     = 12;
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 6;
+    private static final int POOL_WAIT_TIMEOUT         = 10000;
+    private static final int DEFAULT_CONNECT_TIMEOUT   = 15000;
+    private static final int DEFAULT_READ_TIMEOUT      = 15000;
+    private static final long KEEP_ALIVE_DURATION      = 30000;
+    private static final long IDLE_CONNECTION_TIMEOUT  = 30000;
+    
     private static final HttpClientCaller instance = new HttpClientCaller();
 
+    private final HttpParams                  mParams;
+    private final ThreadSafeClientConnManager mConnManager;
+    private final DefaultHttpClient           mClient;
+    
     private HttpClientCaller() {
+        mParams = new BasicHttpParams();
+        HttpProtocolParams.setVersion(mParams, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setContentCharset(mParams, HTTP.UTF_8);
+        HttpConnectionParams.setStaleCheckingEnabled(mParams, true);
+        HttpConnectionParams.setConnectionTimeout(mParams, DEFAULT_CONNECT_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(mParams, DEFAULT_READ_TIMEOUT);
+        HttpConnectionParams.setSocketBufferSize(mParams, 8192);
+        ConnManagerParams.setMaxTotalConnections(mParams, MAX_TOTAL_CONNECTIONS);
+        ConnManagerParams.setMaxConnectionsPerRoute(mParams, new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+        ConnManagerParams.setTimeout(mParams, POOL_WAIT_TIMEOUT);
+        
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+        
+        mConnManager = new ThreadSafeClientConnManager(mParams, registry);
+        mClient      = createClient();
     }
 
     public static HttpClientCaller getInstance() {
         return instance;
     }
     
+    //Applies to every request made after the call, the clients read them from the shared params
+    public void setTimeouts(int connectTimeout, int readTimeout)
+    {
+        HttpConnectionParams.setConnectionTimeout(mParams, connectTimeout);
+        HttpConnectionParams.setSoTimeout(mParams, readTimeout);
+    }
+    
+    //Returns the shared client after dropping connections that the server has most likely
+    //already closed on us.
+    private DefaultHttpClient getClient()
+    {
+        evictIdleConnections();
+        return mClient;
+    }
+    
+    //Clients that need their own request configuration (like a retry handler) still share the
+    //connection pool
+    private DefaultHttpClient createClient()
+    {
+        DefaultHttpClient client = new DefaultHttpClient(mConnManager, mParams);
+        client.setKeepAliveStrategy(new KeepAliveStrategy());
+        return client;
+    }
+    
+    public void evictIdleConnections()
+    {
+        mConnManager.closeExpiredConnections();
+        mConnManager.closeIdleConnections(IDLE_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+    
+    public void shutdown()
+    {
+        mConnManager.shutdown();
+    }
+    
+    private static class KeepAliveStrategy implements ConnectionKeepAliveStrategy
+    {
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context)
+        {
+            HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while (it.hasNext()) {
+                HeaderElement element = it.nextElement();
+                String param = element.getName();
+                String value = element.getValue();
+                if (value != null && param.equalsIgnoreCase("timeout")) {
+                    try {
+                        return Math.min(Long.parseLong(value) * 1000, KEEP_ALIVE_DURATION);
+                    } catch (NumberFormatException e) {}
+                }
+            }
+            return KEEP_ALIVE_DURATION;
+        }
+    }
+    
     class MyEntity extends InputStreamEntity
     {
 
@@ -177,9 +284,9 @@ public class HttpClientCaller
     
     public boolean put(RemoteMethod method, String file, Progress progress) throws IOException
     {
-        HttpClient client = null;
+        HttpResponse response = null;
         try {
-            client = new DefaultHttpClient();
+            HttpClient client = getClient();
             String url = method.getCall();
             Log.w("Mp3tunes", "Calling: " + url);
             
@@ -190,7 +297,7 @@ public class HttpClientCaller
             put.setEntity(entity);
             
             Log.w("Mp3Tunes", "Starting put");
-            HttpResponse response = client.execute(put);
+            response = client.execute(put);
             Log.w("Mp3Tunes", "Put done");
             if (response.containsHeader("X-MP3tunes-ErrorNo")) {
                 return false;
@@ -203,21 +310,21 @@ public class HttpClientCaller
             Log.e("Mp3Tunes", "SocketException: what do we do?");
             throw e;
         } finally {
-            if (client != null)
-                client.getConnectionManager().shutdown();
+            //The connection is only returned to the pool once the entity is consumed
+            if (response != null && response.getEntity() != null)
+                response.getEntity().consumeContent();
         }
     }
     
     public String callNoFixSession(RemoteMethod method) throws IOException, InvalidSessionException, LockerException, LoginException 
     {
         try {
-            HttpClient client = new DefaultHttpClient();
+            HttpClient client = getClient();
             String url = method.getCall();
             Log.w("Mp3tunes", "Calling: " + url);
             HttpGet get = new HttpGet(url);
             ResponseHandler<String> responseHandler = new BasicResponseHandler();
             String response = client.execute(get, responseHandler);
-            client.getConnectionManager().shutdown();
             return response;
         } catch (UnknownHostException e) {
             Log.e("Mp3Tunes", "UnknownHostException: what do we do?");
@@ -230,8 +337,7 @@ public class HttpClientCaller
 
     public String call(RemoteMethod method) throws IOException, InvalidSessionException, LockerException, LoginException 
     {
-        HttpClient client = new DefaultHttpClient();
-        return call(method, client);
+        return call(method, getClient());
     }
     
     public String call(RemoteMethod method, HttpClient client) throws IOException, InvalidSessionException, LockerException, LoginException 
@@ -242,7 +348,6 @@ public class HttpClientCaller
             HttpGet get = new HttpGet(url);
             ResponseHandler<String> responseHandler = new BasicResponseHandler();
             String response = client.execute(get, responseHandler);
-            client.getConnectionManager().shutdown();
             return response;
         } catch (HttpResponseException e) {
             Log.e("Mp3Tunes", "Status code: " + Integer.toString(e.getStatusCode()));
@@ -270,12 +375,11 @@ public class HttpClientCaller
     public byte[] callBytes(RemoteMethod method) throws IOException, InvalidSessionException, LockerException, LoginException 
     {
         try {
-            HttpClient client = new DefaultHttpClient();
+            HttpClient client = getClient();
             String url = method.getCall();
             HttpGet get = new HttpGet(url);
             ResponseHandler<byte[]> responseHandler = new BytesResponseHandler();
             byte[] response = client.execute(get, responseHandler);
-            client.getConnectionManager().shutdown();
             return response;
         } catch (HttpResponseException e) {
             Log.e("Mp3Tunes", "Status code: " + Integer.toString(e.getStatusCode()));
@@ -302,6 +406,47 @@ public class HttpClientCaller
     
     
     
+    public interface StreamHandler<T>
+    {
+        public T handleStream(InputStream input, String charset) throws IOException, JSONException;
+    }
+    
+    //Like call() but hands the response body to the handler as a stream instead of reading it into a String
+    public <T> T callParse(RemoteMethod method, StreamHandler<T> handler) throws IOException, InvalidSessionException, LockerException, LoginException, JSONException
+    {
+        try {
+            HttpClient client = getClient();
+            String url = method.getCall();
+            Log.w("Mp3tunes", "Calling: " + url);
+            HttpGet get = new HttpGet(url);
+            ParsingResponseHandler<T> responseHandler = new ParsingResponseHandler<T>(handler);
+            T response = client.execute(get, responseHandler);
+            if (responseHandler.mJSONException != null)
+                throw responseHandler.mJSONException;
+            return response;
+        } catch (HttpResponseException e) {
+            Log.e("Mp3Tunes", "Status code: " + Integer.toString(e.getStatusCode()));
+            if (e.getStatusCode() == 401) {
+                if (!method.isLogin()) {
+                    if (handleBadSession()) {
+                        method.updateSession();
+                        return callParse(method, handler);
+                    }
+                }
+            }
+            throw e;
+        } catch (UnknownHostException e) {
+            Log.e("Mp3Tunes", "UnknownHostException: what do we do?");
+            throw e;
+        } catch (SocketException e) {
+            Log.e("Mp3Tunes", "SocketException: what do we do?");
+            throw e;
+        } catch (IOException e) {
+            Log.e("Mp3Tunes", Log.getStackTraceString(e));
+            throw e;
+        }
+    }
+    
     private boolean handleBadSession() throws LockerException, LoginException 
     {
             LockerContext c = LockerContext.instance();
@@ -331,6 +476,37 @@ public class HttpClientCaller
 
     }
 
+    private static class ParsingResponseHandler<T> implements ResponseHandler<T>
+    {
+        StreamHandler<T> mHandler;
+        JSONException    mJSONException;
+        
+        ParsingResponseHandler(StreamHandler<T> handler)
+        {
+            mHandler = handler;
+        }
+        
+        public T handleResponse(HttpResponse response) throws ClientProtocolException, IOException 
+        {
+            StatusLine status = response.getStatusLine();
+            if (status.getStatusCode() >= 300) {
+                throw new HttpResponseException(status.getStatusCode(), status.getReasonPhrase());
+            }
+            HttpEntity entity = response.getEntity();
+            if (entity == null) return null;
+            InputStream input = entity.getContent();
+            try {
+                return mHandler.handleStream(input, EntityUtils.getContentCharSet(entity));
+            } catch (JSONException e) {
+                //ResponseHandlers may only throw IOExceptions so we carry this one out by hand
+                mJSONException = e;
+                return null;
+            } finally {
+                input.close();
+            }
+        }
+    }
+
     public interface CreateStreamCallback
     {
         public void handleContentType(String contentType);
@@ -339,12 +515,11 @@ public class HttpClientCaller
     public boolean callStream(String url, CreateStreamCallback fileCreator, Progress progress) throws IOException
     {
         try {
-            HttpClient client = new DefaultHttpClient();
+            HttpClient client = getClient();
             Log.w("Mp3tunes", "Calling: " + url);
             HttpGet get = new HttpGet(url);
             ResponseHandler<Boolean> responseHandler = new OutputStreamResponseHandler(fileCreator, progress);
             boolean response = client.execute(get, responseHandler);
-            client.getConnectionManager().shutdown();
             return response;
         } catch (UnknownHostException e) {
             Log.e("Mp3Tunes", "UnknownHostException: what do we do?");
@@ -379,19 +554,29 @@ public class HttpClientCaller
     
     
     public boolean callStream(String url, CancellableResponseHandler handler, HttpRequestRetryHandler retry) throws IOException
+    {
+        return callStream(url, -1, -1, handler, retry);
+    }
+    
+    //Asks for the bytes from rangeStart to rangeEnd inclusive.  A negative rangeStart asks for the
+    //whole entity without a Range header and a negative rangeEnd asks for everything from rangeStart on.
+    public boolean callStream(String url, long rangeStart, long rangeEnd, CancellableResponseHandler handler, HttpRequestRetryHandler retry) throws IOException
     {
         try {
-            DefaultHttpClient client = new DefaultHttpClient();
-            if (retry != null)
+            DefaultHttpClient client = getClient();
+            if (retry != null) {
+                client = createClient();
                 client.setHttpRequestRetryHandler(retry);
-            HttpParams params = client.getParams();
-            HttpConnectionParams.setConnectionTimeout(params, 15000);
-            HttpConnectionParams.setSoTimeout(params, 15000);
+            }
             Log.w("Mp3tunes", "Calling: " + url);
             HttpGet get = new HttpGet(url);
+            if (rangeStart >= 0) {
+                String range = "bytes=" + rangeStart + "-";
+                if (rangeEnd >= 0) range += rangeEnd;
+                get.addHeader("Range", range);
+            }
             handler.setRequest(get);
             boolean response = client.execute(get, handler);
-            client.getConnectionManager().shutdown();
             return response;
         }catch (HttpResponseException e) {
             //TODO: RonW: add this kind of code to a HttpRequestRetryHandler
@@ -406,7 +591,7 @@ public class HttpClientCaller
                             url.replace(url.substring(sidStart, sidEnd), LockerContext.instance().getSessionId());
                         else 
                             url.replace(url.substring(sidStart), LockerContext.instance().getSessionId());
-                        return callStream(url, handler, retry);
+                        return callStream(url, rangeStart, rangeEnd, handler, retry);
                     }
                 } catch (LockerException e1) {
                     e1.printStackTrace();
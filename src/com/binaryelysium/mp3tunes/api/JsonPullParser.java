@@ -0,0 +1,372 @@
+package com.binaryelysium.mp3tunes.api;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A minimal pull based JSON tokenizer.  It reads directly off of a Reader so that large
+ * lockerData responses never have to be held in memory as one String or as one JSONObject
+ * tree.  Small pieces of a document (a single track, the summary block) can still be read
+ * into JSONObjects with readObject() so the existing fromJson factories can be reused.
+ */
+public class JsonPullParser
+{
+    public enum Token {
+        BEGIN_ARRAY, END_ARRAY, BEGIN_OBJECT, END_OBJECT, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+    }
+
+    private static final int EMPTY_DOCUMENT    = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_ARRAY       = 2;
+    private static final int NONEMPTY_ARRAY    = 3;
+    private static final int EMPTY_OBJECT      = 4;
+    private static final int DANGLING_NAME     = 5;
+    private static final int NONEMPTY_OBJECT   = 6;
+
+    private final Reader        mIn;
+    private final char[]        mBuffer  = new char[1024];
+    private int                 mPos     = 0;
+    private int                 mLimit   = 0;
+    private int[]               mStack   = new int[32];
+    private int                 mStackSize;
+    private Token               mToken;
+    private String              mValue;
+    private final StringBuilder mBuilder = new StringBuilder();
+
+    public JsonPullParser(Reader in)
+    {
+        mIn        = in;
+        mStack[0]  = EMPTY_DOCUMENT;
+        mStackSize = 1;
+    }
+
+    public Token peek() throws IOException, JSONException
+    {
+        if (mToken != null) return mToken;
+
+        int c;
+        switch (mStack[mStackSize - 1]) {
+            case EMPTY_DOCUMENT:
+                mStack[mStackSize - 1] = NONEMPTY_DOCUMENT;
+                return readValueToken();
+            case NONEMPTY_DOCUMENT:
+                c = nextNonWhitespace();
+                if (c == -1) return mToken = Token.END_DOCUMENT;
+                throw syntaxError("Expected end of document");
+            case EMPTY_ARRAY:
+                mStack[mStackSize - 1] = NONEMPTY_ARRAY;
+                c = nextNonWhitespace();
+                if (c == ']') {
+                    mStackSize--;
+                    return mToken = Token.END_ARRAY;
+                }
+                mPos--;
+                return readValueToken();
+            case NONEMPTY_ARRAY:
+                c = nextNonWhitespace();
+                if (c == ']') {
+                    mStackSize--;
+                    return mToken = Token.END_ARRAY;
+                }
+                if (c != ',') throw syntaxError("Unterminated array");
+                return readValueToken();
+            case EMPTY_OBJECT:
+            case NONEMPTY_OBJECT:
+                boolean empty = mStack[mStackSize - 1] == EMPTY_OBJECT;
+                mStack[mStackSize - 1] = DANGLING_NAME;
+                c = nextNonWhitespace();
+                if (c == '}') {
+                    mStackSize--;
+                    return mToken = Token.END_OBJECT;
+                }
+                if (!empty) {
+                    if (c != ',') throw syntaxError("Unterminated object");
+                    c = nextNonWhitespace();
+                }
+                if (c != '"') throw syntaxError("Expected name");
+                mValue = readString();
+                return mToken = Token.NAME;
+            case DANGLING_NAME:
+                mStack[mStackSize - 1] = NONEMPTY_OBJECT;
+                c = nextNonWhitespace();
+                if (c != ':') throw syntaxError("Expected ':'");
+                return readValueToken();
+        }
+        throw syntaxError("Bad parser state");
+    }
+
+    public boolean hasNext() throws IOException, JSONException
+    {
+        Token t = peek();
+        return t != Token.END_OBJECT && t != Token.END_ARRAY && t != Token.END_DOCUMENT;
+    }
+
+    public void beginObject() throws IOException, JSONException
+    {
+        expect(Token.BEGIN_OBJECT);
+    }
+
+    public void endObject() throws IOException, JSONException
+    {
+        expect(Token.END_OBJECT);
+    }
+
+    public void beginArray() throws IOException, JSONException
+    {
+        expect(Token.BEGIN_ARRAY);
+    }
+
+    public void endArray() throws IOException, JSONException
+    {
+        expect(Token.END_ARRAY);
+    }
+
+    public String nextName() throws IOException, JSONException
+    {
+        expect(Token.NAME);
+        return mValue;
+    }
+
+    public String nextString() throws IOException, JSONException
+    {
+        Token t = peek();
+        if (t != Token.STRING && t != Token.NUMBER && t != Token.BOOLEAN)
+            throw syntaxError("Expected a string but was " + t);
+        mToken = null;
+        return mValue;
+    }
+
+    public int nextInt() throws IOException, JSONException
+    {
+        String value = nextString();
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return (int)parseDouble(value);
+        }
+    }
+
+    public long nextLong() throws IOException, JSONException
+    {
+        String value = nextString();
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return (long)parseDouble(value);
+        }
+    }
+
+    public double nextDouble() throws IOException, JSONException
+    {
+        return parseDouble(nextString());
+    }
+
+    public void skipValue() throws IOException, JSONException
+    {
+        int depth = 0;
+        do {
+            Token t = peek();
+            mToken = null;
+            if (t == Token.BEGIN_ARRAY || t == Token.BEGIN_OBJECT) {
+                depth++;
+            } else if (t == Token.END_ARRAY || t == Token.END_OBJECT) {
+                depth--;
+            } else if (t == Token.END_DOCUMENT) {
+                throw syntaxError("Unexpected end of document");
+            }
+        } while (depth > 0);
+    }
+
+    public JSONObject readObject() throws IOException, JSONException
+    {
+        JSONObject obj = new JSONObject();
+        beginObject();
+        while (hasNext()) {
+            String name = nextName();
+            obj.put(name, readValue());
+        }
+        endObject();
+        return obj;
+    }
+
+    public JSONArray readArray() throws IOException, JSONException
+    {
+        JSONArray array = new JSONArray();
+        beginArray();
+        while (hasNext()) {
+            array.put(readValue());
+        }
+        endArray();
+        return array;
+    }
+
+    public Object readValue() throws IOException, JSONException
+    {
+        switch (peek()) {
+            case BEGIN_OBJECT:
+                return readObject();
+            case BEGIN_ARRAY:
+                return readArray();
+            case STRING:
+                return nextString();
+            case NUMBER:
+                String number = nextString();
+                try {
+                    return Integer.valueOf(number);
+                } catch (NumberFormatException e) {}
+                try {
+                    return Long.valueOf(number);
+                } catch (NumberFormatException e) {}
+                return Double.valueOf(parseDouble(number));
+            case BOOLEAN:
+                return Boolean.valueOf(nextString());
+            case NULL:
+                mToken = null;
+                return JSONObject.NULL;
+            default:
+                throw syntaxError("Expected a value but was " + peek());
+        }
+    }
+
+    public void close() throws IOException
+    {
+        mIn.close();
+    }
+
+    private void expect(Token expected) throws IOException, JSONException
+    {
+        Token t = peek();
+        if (t != expected)
+            throw syntaxError("Expected " + expected + " but was " + t);
+        mToken = null;
+    }
+
+    private Token readValueToken() throws IOException, JSONException
+    {
+        int c = nextNonWhitespace();
+        switch (c) {
+            case '{':
+                push(EMPTY_OBJECT);
+                return mToken = Token.BEGIN_OBJECT;
+            case '[':
+                push(EMPTY_ARRAY);
+                return mToken = Token.BEGIN_ARRAY;
+            case '"':
+                mValue = readString();
+                return mToken = Token.STRING;
+            case -1:
+                throw syntaxError("Unexpected end of document");
+        }
+        mPos--;
+        mValue = readLiteral();
+        if (mValue.length() == 0) throw syntaxError("Expected a value");
+        if (mValue.equals("null"))  return mToken = Token.NULL;
+        if (mValue.equals("true") || mValue.equals("false")) return mToken = Token.BOOLEAN;
+        char first = mValue.charAt(0);
+        if (first == '-' || (first >= '0' && first <= '9')) return mToken = Token.NUMBER;
+        throw syntaxError("Unexpected literal: " + mValue);
+    }
+
+    private void push(int scope)
+    {
+        if (mStackSize == mStack.length) {
+            int[] stack = new int[mStackSize * 2];
+            System.arraycopy(mStack, 0, stack, 0, mStackSize);
+            mStack = stack;
+        }
+        mStack[mStackSize++] = scope;
+    }
+
+    private boolean fill() throws IOException
+    {
+        mPos   = 0;
+        mLimit = mIn.read(mBuffer, 0, mBuffer.length);
+        if (mLimit <= 0) {
+            mLimit = 0;
+            return false;
+        }
+        return true;
+    }
+
+    private int nextChar() throws IOException
+    {
+        if (mPos == mLimit && !fill()) return -1;
+        return mBuffer[mPos++];
+    }
+
+    private int nextNonWhitespace() throws IOException
+    {
+        while (true) {
+            int c = nextChar();
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') return c;
+        }
+    }
+
+    private String readString() throws IOException, JSONException
+    {
+        mBuilder.setLength(0);
+        while (true) {
+            int c = nextChar();
+            if (c == -1) throw syntaxError("Unterminated string");
+            if (c == '"') return mBuilder.toString();
+            if (c == '\\') {
+                c = nextChar();
+                switch (c) {
+                    case 'b': mBuilder.append('\b'); break;
+                    case 'f': mBuilder.append('\f'); break;
+                    case 'n': mBuilder.append('\n'); break;
+                    case 'r': mBuilder.append('\r'); break;
+                    case 't': mBuilder.append('\t'); break;
+                    case 'u':
+                        int value = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(nextChar(), 16);
+                            if (digit == -1) throw syntaxError("Bad unicode escape");
+                            value = (value << 4) | digit;
+                        }
+                        mBuilder.append((char)value);
+                        break;
+                    case -1:
+                        throw syntaxError("Unterminated escape");
+                    default:
+                        mBuilder.append((char)c);
+                }
+            } else {
+                mBuilder.append((char)c);
+            }
+        }
+    }
+
+    private String readLiteral() throws IOException
+    {
+        mBuilder.setLength(0);
+        while (true) {
+            if (mPos == mLimit && !fill()) break;
+            char c = mBuffer[mPos];
+            if (c == ',' || c == ':' || c == ']' || c == '}' || c == '[' || c == '{' ||
+                c == '"' || c == ' ' || c == '\t' || c == '\n' || c == '\r')
+                break;
+            mBuilder.append(c);
+            mPos++;
+        }
+        return mBuilder.toString();
+    }
+
+    private double parseDouble(String value) throws JSONException
+    {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw syntaxError("Expected a number but was: " + value);
+        }
+    }
+
+    private JSONException syntaxError(String message)
+    {
+        return new JSONException(message);
+    }
+}
@@ -25,7 +25,6 @@ import java.util.List;
 
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.HttpResponseException;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -193,27 +192,18 @@ public class Locker
     public List<Artist> getArtistsList(RemoteMethod method) throws LockerException
     {
         try {
-            String text;
+            ArrayList<Artist> artists = new ArrayList<Artist>();
+            JSONObject summary;
             try {
-                text = HttpClientCaller.getInstance().call(method);
+                summary = HttpClientCaller.getInstance().callParse(method, new LockerDataParser()
+                              .addList("artistList", LockerDataParser.ARTIST_FACTORY, artists));
             } catch (IOException e) {
                 throw new LockerException("download failed");
             }
         
-            JSONObject json = new JSONObject(text);
-            int numResults = json.getJSONObject("summary").getInt("totalResults");
+            int numResults = summary.getInt("totalResults");
             //Log.w("Mp3Tunes", "Get artists call got: " + Integer.toString(numResults) + " results");
-            ArrayList<Artist> artists = new ArrayList<Artist>();
-            if (numResults == 0) return artists;
-        
-            JSONArray jsonArtists = json.optJSONArray("artistList");
-            if (jsonArtists == null) return artists;
-            for (int i = 0; i < jsonArtists.length(); i++) {
-                JSONObject obj = jsonArtists.getJSONObject(i);
-                Artist a = Artist.artistFromJson(obj);
-                if (a != null)
-                    artists.add(a);
-            }
+            if (numResults == 0) return new ArrayList<Artist>();
             if (artists.size() < 1) throw new LockerException("Sever Sent Corrupt Data");
             return artists;
         } catch (InvalidSessionException e) {
@@ -267,28 +257,18 @@ public class Locker
     public List<Album> getAlbumsList(RemoteMethod method) throws LockerException
     {
         try {
-            String text;
+            ArrayList<Album> albums = new ArrayList<Album>();
+            JSONObject summary;
             try {
-                text = HttpClientCaller.getInstance().call(method);
+                summary = HttpClientCaller.getInstance().callParse(method, new LockerDataParser()
+                              .addList("albumList", LockerDataParser.ALBUM_FACTORY, albums));
             } catch (IOException e) {
                 throw new LockerException("download failed");
             }
 
-            JSONObject json = new JSONObject(text);
-            int numResults = json.getJSONObject("summary").getInt("totalResults");
+            int numResults = summary.getInt("totalResults");
             //Log.w("Mp3Tunes", "Get artists call got: " + Integer.toString(numResults) + " results");
-            ArrayList<Album> albums = new ArrayList<Album>();
-            if (numResults == 0) return albums;
-        
-            JSONArray jsonAlbums = json.optJSONArray("albumList");
-            if (jsonAlbums == null) return albums;
-            for (int i = 0; i < jsonAlbums.length(); i++) {
-                JSONObject obj = jsonAlbums.getJSONObject(i);
-                Album a = Album.albumFromJson(obj);
-                if (a != null)
-                    albums.add(a);
-            }
-        
+            if (numResults == 0) return new ArrayList<Album>();
             if (albums.size() < 1) throw new LockerException("Sever Sent Corrupt Data");
             return albums;
         } catch (InvalidSessionException e) {
@@ -304,36 +284,24 @@ public class Locker
     public List<Track> getTrackList(RemoteMethod method) throws LockerException
     {
         try {
-            String text;
+            ArrayList<Track> tracks = new ArrayList<Track>();
+            JSONObject obj;
             try {
-                text = HttpClientCaller.getInstance().call(method);
+                obj = HttpClientCaller.getInstance().callParse(method, new LockerDataParser()
+                          .addList("trackList", LockerDataParser.TRACK_FACTORY, tracks));
             } catch (IOException e) {
                 throw new LockerException("download failed");
             }
         
             //We get the extra data here because the sets for generated playlists do not behave
             //the same way as no
-            JSONObject json  = new JSONObject(text);
-            JSONObject obj   = json.getJSONObject("summary");
             int numResults   = obj.optInt("totalResults");
             int set          = obj.optInt("set");
             //int count        = obj.optInt("count");
             double totalSets = obj.optDouble("totalResultSets");
         
             //Log.w("Mp3Tunes", "Get Tracks call got: " + Integer.toString(numResults) + " results");
-            ArrayList<Track> tracks = new ArrayList<Track>();
-            if (numResults == 0 || set > totalSets) return tracks;
-        
-            JSONArray jsonTracks = json.optJSONArray("trackList");
-            if (jsonTracks == null) return tracks;
-            for (int i = 0; i < jsonTracks.length(); i++) {
-                JSONObject track = jsonTracks.getJSONObject(i);
-                Track t = ConcreteTrack.trackFromJson(track);
-                if (t != null) 
-                    tracks.add(t);
-                else
-                    Log.e("Mp3tunes", "Got null track. Now why did that happen");
-            }
+            if (numResults == 0 || set > totalSets) return new ArrayList<Track>();
             if (tracks.size() < 1) throw new LockerException("Sever Sent Corrupt Data");
             return tracks;
         } catch (InvalidSessionException e) {
@@ -400,30 +368,18 @@ public class Locker
     public List<Playlist> getPlaylistList(RemoteMethod method) throws LockerException
     {
         try {
-            String text;
+            ArrayList<Playlist> playlists = new ArrayList<Playlist>();
+            JSONObject summary;
             try {
-                text = HttpClientCaller.getInstance().call(method);
+                summary = HttpClientCaller.getInstance().callParse(method, new LockerDataParser()
+                              .addList("playlistList", LockerDataParser.PLAYLIST_FACTORY, playlists));
             } catch (IOException e) {
                 throw new LockerException("download failed");
             }
         
-            JSONObject json = new JSONObject(text);
-            int numResults = json.getJSONObject("summary").getInt("totalResults");
+            int numResults = summary.getInt("totalResults");
             //Log.w("Mp3Tunes", "Get Playlists call got: " + Integer.toString(numResults) + " results");
-            ArrayList<Playlist> playlists = new ArrayList<Playlist>();
-            if (numResults == 0) return playlists;
-        
-            JSONArray jsonPlaylists = json.optJSONArray("playlistList");
-            if (jsonPlaylists == null) return playlists;
-            for (int i = 0; i < jsonPlaylists.length(); i++) {
-                JSONObject obj = jsonPlaylists.getJSONObject(i);
-                Playlist p = Playlist.playlistFromJson(obj);
-                if (p != null) 
-                    playlists.add(p);
-                else
-                    Log.e("Mp3tunes", "Got null playlist. Now why did that happen");
-            }
-        
+            if (numResults == 0) return new ArrayList<Playlist>();
             if (playlists.size() < 1) throw new LockerException("Sever Sent Corrupt Data");
             return playlists;
         } catch (InvalidSessionException e) {
@@ -461,15 +417,20 @@ public class Locker
 
     public SearchResult search(RemoteMethod method) throws LockerException, InvalidSessionException, JSONException, LoginException
     {
-        String text;
+        ArrayList<Artist> artists = new ArrayList<Artist>();
+        ArrayList<Album>  albums  = new ArrayList<Album>();
+        ArrayList<Track>  tracks  = new ArrayList<Track>();
+        JSONObject summary;
         try {
-            text = HttpClientCaller.getInstance().call(method);
+            summary = HttpClientCaller.getInstance().callParse(method, new LockerDataParser()
+                          .addList("artistList", LockerDataParser.ARTIST_FACTORY, artists)
+                          .addList("albumList",  LockerDataParser.ALBUM_FACTORY,  albums)
+                          .addList("trackList",  LockerDataParser.TRACK_FACTORY,  tracks));
         } catch (IOException e) {
             throw new LockerException("download failed");
         }
         
-        JSONObject json = new JSONObject(text);
-        JSONObject results = json.getJSONObject("summary").getJSONObject("totalResults");
+        JSONObject results = summary.getJSONObject("totalResults");
         
         int numArtists = results.getInt("artist");
         int numAlbums  = results.getInt("album");
@@ -479,47 +440,12 @@ public class Locker
               Integer.toString(numAlbums) + " albums: " + Integer.toString(numTracks) + " tracks");
         
         SearchResult result = new SearchResult();
-        if (numArtists > 0) {
-            ArrayList<Artist> artists = new ArrayList<Artist>();
-            JSONArray jsonArray = json.getJSONArray("artistList");
-            for (int i = 0; i < jsonArray.length(); i++) {
-                JSONObject obj = jsonArray.getJSONObject(i);
-                Artist a = Artist.artistFromJson(obj);
-                if (a != null) 
-                    artists.add(a);
-                else
-                    Log.e("Mp3tunes", "Got null artist. Now why did that happen");
-            }
+        if (numArtists > 0)
             result.setArtists(artists);
-        }
-        
-        if (numAlbums > 0) {
-            ArrayList<Album> albums = new ArrayList<Album>();
-            JSONArray jsonArray = json.getJSONArray("albumList");
-            for (int i = 0; i < jsonArray.length(); i++) {
-                JSONObject obj = jsonArray.getJSONObject(i);
-                Album a = Album.albumFromJson(obj);
-                if (a != null) 
-                    albums.add(a);
-                else
-                    Log.e("Mp3tunes", "Got null artist. Now why did that happen");
-            }
+        if (numAlbums > 0)
             result.setAlbums(albums);
-        }
-        
-        if (numTracks > 0) {
-            ArrayList<Track> tracks = new ArrayList<Track>();
-            JSONArray jsonArray = json.getJSONArray("trackList");
-            for (int i = 0; i < jsonArray.length(); i++) {
-                JSONObject obj = jsonArray.getJSONObject(i);
-                Track t = ConcreteTrack.trackFromJson(obj);
-                if (t != null) 
-                    tracks.add(t);
-                else
-                    Log.e("Mp3tunes", "Got null artist. Now why did that happen");
-            }
+        if (numTracks > 0)
             result.setTracks(tracks);
-        }
         return result;
     }
 
@@ -0,0 +1,129 @@
+package com.binaryelysium.mp3tunes.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+/**
+ * Decodes lockerData and lockerSearch responses straight off of the http entity stream.
+ * Each entry of a registered list ("trackList", "artistList", ...) is turned into a model
+ * object and handed to its listener as soon as it is read, so neither the whole response
+ * text nor a JSONObject tree for the whole response is ever built.
+ */
+public class LockerDataParser implements HttpClientCaller.StreamHandler<JSONObject>
+{
+    public interface ItemFactory<T>
+    {
+        public T create(JSONObject obj);
+    }
+
+    public interface ItemListener<T>
+    {
+        public void onItem(T item);
+    }
+
+    public static final ItemFactory<Track> TRACK_FACTORY = new ItemFactory<Track>() {
+        public Track create(JSONObject obj)
+        {
+            return ConcreteTrack.trackFromJson(obj);
+        }
+    };
+
+    public static final ItemFactory<Artist> ARTIST_FACTORY = new ItemFactory<Artist>() {
+        public Artist create(JSONObject obj)
+        {
+            return Artist.artistFromJson(obj);
+        }
+    };
+
+    public static final ItemFactory<Album> ALBUM_FACTORY = new ItemFactory<Album>() {
+        public Album create(JSONObject obj)
+        {
+            return Album.albumFromJson(obj);
+        }
+    };
+
+    public static final ItemFactory<Playlist> PLAYLIST_FACTORY = new ItemFactory<Playlist>() {
+        public Playlist create(JSONObject obj)
+        {
+            return Playlist.playlistFromJson(obj);
+        }
+    };
+
+    private static class ListHandler<T>
+    {
+        ItemFactory<T>  mFactory;
+        ItemListener<T> mListener;
+
+        ListHandler(ItemFactory<T> factory, ItemListener<T> listener)
+        {
+            mFactory  = factory;
+            mListener = listener;
+        }
+
+        void handle(JSONObject obj)
+        {
+            T item = mFactory.create(obj);
+            if (item != null)
+                mListener.onItem(item);
+            else
+                Log.e("Mp3tunes", "Got null locker data. Now why did that happen");
+        }
+    }
+
+    private Map<String, ListHandler<?>> mHandlers = new HashMap<String, ListHandler<?>>();
+
+    public <T> LockerDataParser addList(String name, ItemFactory<T> factory, ItemListener<T> listener)
+    {
+        mHandlers.put(name, new ListHandler<T>(factory, listener));
+        return this;
+    }
+
+    public <T> LockerDataParser addList(String name, ItemFactory<T> factory, final List<T> list)
+    {
+        return addList(name, factory, new ItemListener<T>() {
+            public void onItem(T item)
+            {
+                list.add(item);
+            }
+        });
+    }
+
+    //Returns the summary object of the response.  Everything other than the summary and the
+    //registered lists is skipped without being decoded.
+    public JSONObject handleStream(InputStream input, String charset) throws IOException, JSONException
+    {
+        if (charset == null) charset = "UTF-8";
+        JsonPullParser parser = new JsonPullParser(new InputStreamReader(input, charset));
+
+        JSONObject summary = null;
+        parser.beginObject();
+        while (parser.hasNext()) {
+            String name = parser.nextName();
+            ListHandler<?> handler = mHandlers.get(name);
+            if (name.equals("summary")) {
+                summary = parser.readObject();
+            } else if (handler != null && parser.peek() == JsonPullParser.Token.BEGIN_ARRAY) {
+                parser.beginArray();
+                while (parser.hasNext()) {
+                    handler.handle(parser.readObject());
+                }
+                parser.endArray();
+            } else {
+                parser.skipValue();
+            }
+        }
+        parser.endObject();
+
+        if (summary == null) throw new JSONException("No summary in response");
+        return summary;
+    }
+}
@@ -23,6 +23,7 @@ package com.mp3tunes.android.player;
 
 import java.util.WeakHashMap;
 
+import com.binaryelysium.mp3tunes.api.HttpClientCaller;
 import com.binaryelysium.mp3tunes.api.Locker;
 import com.binaryelysium.mp3tunes.api.LockerContext;
 import com.binaryelysium.mp3tunes.api.LockerContext.ContextRetriever;
@@ -33,6 +34,7 @@ import android.app.Application;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
 
 
 public class MP3tunesApplication extends Application
@@ -61,8 +63,26 @@ public class MP3tunesApplication extends Application
         map.put(LOCKER_CONTEXT_KEY, new LockerContext());
         LockerContext.setContextRetriever(new Retriever());
         LockerContext.instance().setPartnerToken(PrivateAPIKey.KEY);
+        
+        applyNetworkTimeout();
+        PreferenceManager.getDefaultSharedPreferences(this).registerOnSharedPreferenceChangeListener(mPreferenceListener);
     }    
 
+    //The preferences only keep a weak reference to their listeners, so we hold this one
+    private final SharedPreferences.OnSharedPreferenceChangeListener mPreferenceListener = 
+        new SharedPreferences.OnSharedPreferenceChangeListener() {
+            public void onSharedPreferenceChanged(SharedPreferences prefs, String key)
+            {
+                if (key.equals("timeout")) applyNetworkTimeout();
+            }
+        };
+    
+    private void applyNetworkTimeout()
+    {
+        int timeout = Music.getNetworkTimeout(this);
+        HttpClientCaller.getInstance().setTimeouts(timeout, timeout);
+    }
+
 
     
     public void onTerminate()
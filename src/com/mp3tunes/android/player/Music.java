@@ -673,6 +673,26 @@ public class Music
         return size;
     }
 
+    //Whether a track cached at a lower rate than we want is played anyway and downloaded again
+    //at the better rate in the background
+    public static boolean getUpgradeCachedTracks(Context context)
+    {
+        try {
+            return PreferenceManager.getDefaultSharedPreferences(context).getBoolean("upgrade_cache", false);
+        } catch (Exception e) {}
+        return false;
+    }
+
+    //How long in milliseconds we wait to connect to the server and for each read from it
+    public static int getNetworkTimeout(Context context)
+    {
+        try {
+            return Integer.valueOf(PreferenceManager
+                .getDefaultSharedPreferences(context).getString("timeout", "15000"));
+        } catch (Exception e) {}
+        return 15000;
+    }
+
     public static long getMinFreeStorageSize()
     {
         //for now make sure that the user has at least 50mb free
@@ -293,6 +293,17 @@ public class QueryBrowser2 extends ExpandableListActivity
 //            return true;
 //        }
 
+        //The local answer to the search.  The task keeps asking the server and onPostExecute
+        //swaps in the merged results when it is done.
+        @Override
+        public void onProgressUpdate(Void... values)
+        {
+            if (mLocalResult == null) return;
+            dismissDialog( PROGRESS );
+            showResult(mLocalResult);
+            mLocalResult = null;
+        }
+        
         @Override
         public void onPostExecute( Boolean result )
         {
@@ -301,23 +312,33 @@ public class QueryBrowser2 extends ExpandableListActivity
                 Log.w("Mp3Tunes", "Search Failed");
                 return;
             }
-            
-            MatrixCursor parentCursor  = new MatrixCursor(mGroupFrom);
-            createParentRow(0, getBaseContext().getString(R.string.artists), parentCursor, mResult.mArtists.getCount());
-            createParentRow(1, getBaseContext().getString(R.string.tracks),  parentCursor, mResult.mTracks.getCount());
-            mParentCursor =  parentCursor;
-            
-            mArtistsCursor = new ReindexingCursorWrapper(addColumnToCursor(mResult.mArtists, ARTIST), new AlphabeticalTheRemovedIndexer(), 1);
-            mTracksCursor  = new ReindexingCursorWrapper(addColumnToCursor(mResult.mTracks,  TRACK),  new AlphabeticalTheRemovedIndexer(), 1);
-            mAdapter.changeCursor(mParentCursor);
-            
-            if (mResult.mArtists != null)
-                mResult.mArtists.close();
-            if (mResult.mTracks != null)
-                mResult.mTracks.close();
+            showResult(mResult);
         }
     }
     
+    private void showResult(LockerDb.RefreshSearchTask.DbSearchResult result)
+    {
+        if (result.mArtists == null || result.mTracks == null) {
+            if (result.mArtists != null)
+                result.mArtists.close();
+            if (result.mTracks != null)
+                result.mTracks.close();
+            return;
+        }
+        
+        MatrixCursor parentCursor  = new MatrixCursor(mGroupFrom);
+        createParentRow(0, getBaseContext().getString(R.string.artists), parentCursor, result.mArtists.getCount());
+        createParentRow(1, getBaseContext().getString(R.string.tracks),  parentCursor, result.mTracks.getCount());
+        mParentCursor =  parentCursor;
+        
+        mArtistsCursor = new ReindexingCursorWrapper(addColumnToCursor(result.mArtists, ARTIST), new AlphabeticalTheRemovedIndexer(), 1);
+        mTracksCursor  = new ReindexingCursorWrapper(addColumnToCursor(result.mTracks,  TRACK),  new AlphabeticalTheRemovedIndexer(), 1);
+        mAdapter.changeCursor(mParentCursor);
+        
+        result.mArtists.close();
+        result.mTracks.close();
+    }
+    
     private MatrixCursor addColumnToCursor(Cursor c, int val)
     {
         MatrixCursor output = new MatrixCursor(mChildFrom);
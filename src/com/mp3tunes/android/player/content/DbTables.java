@@ -10,4 +10,8 @@ public class DbTables
     public static final String TOKEN            = "token";
     //blic static final String CURRENT_PLAYLIST = "current_playlist";
     public static final String CACHE            = "cache";
+    public static final String TRACK_SEARCH     = "track_search";
+    public static final String ARTIST_SEARCH    = "artist_search";
+    public static final String ALBUM_SEARCH     = "album_search";
+    public static final String PINNED_PLAYLIST  = "pinned_playlist";
 }
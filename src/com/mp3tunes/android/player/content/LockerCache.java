@@ -20,12 +20,15 @@ package com.mp3tunes.android.player.content;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.binaryelysium.mp3tunes.api.Album;
 import com.binaryelysium.mp3tunes.api.Artist;
 import com.binaryelysium.mp3tunes.api.Id;
+import com.binaryelysium.mp3tunes.api.Locker;
 import com.binaryelysium.mp3tunes.api.LockerException;
 import com.binaryelysium.mp3tunes.api.Playlist;
 import com.binaryelysium.mp3tunes.api.Track;
@@ -51,11 +54,17 @@ public class LockerCache
     
     Map<String, CacheItem> mMap = new HashMap<String, CacheItem>();
     
+    //How long a cached list is shown without asking the server whether it has changed
+    private static final long CHECK_INTERVAL = 10 * 60 * 1000;
+    
     static public class CacheItem 
     {
         int      mState;
         long     mUpdate;
         Progress mProgress;
+        
+        //When we last asked the server for this cache's lastUpdate.  Not persisted.
+        long     mChecked;
         @Override
         public int hashCode()
         {
@@ -111,6 +120,57 @@ public class LockerCache
         item.mProgress = new Progress(20);
         item.mState    = CacheState.CACHING;
         item.mUpdate   = time;
+        item.mChecked  = System.currentTimeMillis();
+    }
+    
+    //Restarts a cache that was already CACHED because the server reports changes since the
+    //timestamp it was built against.  Rows are upserted as the pages come back in and the ids
+    //that we see are recorded so that rows deleted on the server can be removed at the end.
+    public void beginUpdating(String cacheId, long time)
+    {
+        beginCaching(cacheId, time);
+        if (getTableForCache(cacheId) != null)
+            mMap.get(cacheId).mProgress.mSeen = new HashSet<String>();
+    }
+    
+    //Asking the server costs a round trip, and the full connect timeout when we are offline,
+    //so a cache that is already built is only checked once every CHECK_INTERVAL
+    public boolean needsCheck(String cacheId)
+    {
+        CacheItem item = mMap.get(cacheId);
+        if (item == null) return true;
+        return System.currentTimeMillis() - item.mChecked >= CHECK_INTERVAL;
+    }
+    
+    public void setChecked(String cacheId)
+    {
+        CacheItem item = mMap.get(cacheId);
+        if (item != null) item.mChecked = System.currentTimeMillis();
+    }
+    
+    //We only know that a cache is stale if we managed to ask the server.  If we could not then
+    //we keep serving what we have.
+    public boolean isStale(String cacheId, long serverUpdate)
+    {
+        CacheItem item = mMap.get(cacheId);
+        if (item == null || serverUpdate == 0) return false;
+        return item.mUpdate != serverUpdate;
+    }
+    
+    static public Locker.UpdateType getUpdateType(String cacheId)
+    {
+        if (cacheId.equals(CACHES.ARTIST) || cacheId.equals(CACHES.ALBUM) || cacheId.equals(CACHES.TRACK))
+            return Locker.UpdateType.locker;
+        return Locker.UpdateType.playlist;
+    }
+    
+    static String getTableForCache(String cacheId)
+    {
+        if (cacheId.equals(CACHES.ARTIST))   return DbTables.ARTIST;
+        if (cacheId.equals(CACHES.ALBUM))    return DbTables.ALBUM;
+        if (cacheId.equals(CACHES.TRACK))    return DbTables.TRACK;
+        if (cacheId.equals(CACHES.PLAYLIST)) return DbTables.PLAYLIST;
+        return null;
     }
     
     public void finishCaching(String cacheId)
@@ -192,6 +252,13 @@ public class LockerCache
         int mCurrentSet;
         int mCount;
         
+        //ids returned by the server during an update.  Not persisted, so a sync that is resumed
+        //after a restart does not remove stale rows.
+        Set<String> mSeen;
+        
+        //Set once a fill has been handed the empty set that follows the last one
+        boolean mReachedEnd;
+        
         Progress( int count)
         {
             mCurrentSet = 0;
@@ -236,7 +303,7 @@ public class LockerCache
     }
     
   
-    static public class RefreshArtistsTask extends RefreshTask
+    static public class RefreshArtistsTask extends PipelinedRefreshTask<Artist>
     {
         public RefreshArtistsTask(LockerDb db)
         {
@@ -244,15 +311,14 @@ public class LockerCache
         }
 
         @Override
-        protected boolean dispatch(String cacheId, Progress p, String id)
-                throws SQLiteException, IOException, LockerException
+        protected List<Artist> fetch(String id, int count, int set)
+                throws IOException, LockerException
         {
-            List<Artist> artists = mDb.mLocker.getArtists(p.mCount, p.mCurrentSet);
-            return mDb.multiInsert(artists, p);
+            return mDb.mLocker.getArtists(count, set);
         }
     }
 
-    static public class RefreshAlbumsTask extends RefreshTask
+    static public class RefreshAlbumsTask extends PipelinedRefreshTask<Album>
     {
         public RefreshAlbumsTask(LockerDb db)
         {
@@ -260,11 +326,10 @@ public class LockerCache
         }
 
         @Override
-        protected boolean dispatch(String cacheId, Progress p, String id)
-                throws SQLiteException, IOException, LockerException
+        protected List<Album> fetch(String id, int count, int set)
+                throws IOException, LockerException
         {
-            List<Album> albums = mDb.mLocker.getAlbums(p.mCount, p.mCurrentSet);
-            return mDb.multiInsert(albums, p);
+            return mDb.mLocker.getAlbums(count, set);
         }
     }
     
@@ -284,7 +349,7 @@ public class LockerCache
         }
     }
     
-    static public class RefreshTracksTask extends RefreshTask
+    static public class RefreshTracksTask extends PipelinedRefreshTask<Track>
     {
         public RefreshTracksTask(LockerDb db)
         {
@@ -292,11 +357,10 @@ public class LockerCache
         }
 
         @Override
-        protected boolean dispatch(String cacheId, Progress p, String id)
-                throws SQLiteException, IOException, LockerException
+        protected List<Track> fetch(String id, int count, int set)
+                throws IOException, LockerException
         {
-            List<Track> tracks = mDb.mLocker.getTracks(p.mCount, p.mCurrentSet);
-            return mDb.multiInsert(tracks, p);
+            return mDb.mLocker.getTracks(count, set);
         }
     }
     
@@ -21,13 +21,16 @@
 package com.mp3tunes.android.player.content;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.json.JSONException;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDiskIOException;
 import android.database.sqlite.SQLiteException;
@@ -38,6 +41,7 @@ import com.binaryelysium.mp3tunes.api.ConcreteTrack;
 import com.binaryelysium.mp3tunes.api.Id;
 import com.binaryelysium.mp3tunes.api.InvalidSessionException;
 import com.binaryelysium.mp3tunes.api.Locker;
+import com.binaryelysium.mp3tunes.api.LockerData;
 import com.binaryelysium.mp3tunes.api.LockerException;
 import com.binaryelysium.mp3tunes.api.LockerId;
 import com.binaryelysium.mp3tunes.api.Playlist;
@@ -99,6 +103,7 @@ public class LockerDb
         mDb.delete(DbTables.PLAYLIST_TRACKS, null, null);
         mDb.delete(DbTables.TOKEN, null, null);
         mDb.delete(DbTables.CACHE, null, null);
+        mDb.delete(DbTables.PINNED_PLAYLIST, null, null);
     }
  
     //Basic Getters returning api data structures
@@ -122,7 +127,9 @@ public class LockerDb
     
     public Artist getArtistByName(String artistName)
     {
-        return cursorToArtist(mDb.query(DbTables.ARTIST, Music.ARTIST, DbKeys.ARTIST_NAME + "=\"" + artistName + "\"", null, null, null, null));
+        String[] args  = new String[] {artistName};
+        String   where = DbKeys.ARTIST_NAME + "=?";
+        return cursorToArtist(mDb.query(DbTables.ARTIST, Music.ARTIST, where, args, null, null, null));
     }
 
     public Album getAlbum(LockerId id)
@@ -132,7 +139,9 @@ public class LockerDb
     
     public Album getAlbum(String name)
     {
-        return cursorToAlbum(mDb.query(DbTables.ALBUM, Music.ALBUM, DbKeys.ALBUM_NAME + "=\"" + name + "\"", null, null, null, null));
+        String[] args  = new String[] {name};
+        String   where = DbKeys.ALBUM_NAME + "=?";
+        return cursorToAlbum(mDb.query(DbTables.ALBUM, Music.ALBUM, where, args, null, null, null));
     }
     
     //Getters returning cursors
@@ -184,6 +193,37 @@ public class LockerDb
                 null, null, null, DbKeys.TITLE);
     }
     
+    //Pinned playlists have their tracks kept in the track cache
+    public void setPlaylistPinned(String playlistId, boolean pinned)
+    {
+        String[] args = new String[] {playlistId};
+        if (pinned) {
+            mDb.execSQL("INSERT OR IGNORE INTO " + DbTables.PINNED_PLAYLIST + "(" + DbKeys.PLAYLIST_ID + ") VALUES (?)", args);
+        } else {
+            mDb.delete(DbTables.PINNED_PLAYLIST, DbKeys.PLAYLIST_ID + "=?", args);
+        }
+    }
+    
+    public boolean isPlaylistPinned(String playlistId)
+    {
+        String[] args = new String[] {playlistId};
+        return DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM " + DbTables.PINNED_PLAYLIST + 
+                                               " WHERE " + DbKeys.PLAYLIST_ID + "=?", args) > 0;
+    }
+    
+    public Cursor getPinnedPlaylistIds()
+    {
+        return mDb.query(DbTables.PINNED_PLAYLIST, new String[] {DbKeys.PLAYLIST_ID}, null, null, null, null, null);
+    }
+    
+    //The ids of the tracks on every pinned playlist
+    public Cursor getPinnedTrackIds()
+    {
+        return mDb.rawQuery("SELECT DISTINCT " + DbKeys.TRACK_ID + " FROM " + DbTables.PLAYLIST_TRACKS + 
+                            " WHERE " + DbKeys.PLAYLIST_ID + " IN (SELECT " + DbKeys.PLAYLIST_ID + 
+                            " FROM " + DbTables.PINNED_PLAYLIST + ")", null);
+    }
+    
     //TODO: replace big query with view
     public Cursor getTrackDataByPlaylist(String[] from, LockerId mId) throws SQLiteException, IOException, LockerException
     {
@@ -233,8 +273,12 @@ public class LockerDb
     }
     
     
+    //All of the writes are upserts.  The artist and album rows that come along with tracks are
+    //remembered for the life of the inserter so a batch only writes each of them once.
     class DataInserter
     {
+        private Set<Integer> mArtists = new HashSet<Integer>();
+        private Set<Integer> mAlbums  = new HashSet<Integer>();
         
     private <T> void insert(T object, int index) throws IOException, SQLiteException
     {
@@ -260,22 +304,20 @@ public class LockerDb
         try {
             // Insert artist info to the artist table
             if (track.getArtistName().length() > 0) {
-                if (!mQueries.artistExists(track.getArtistId())) {
+                if (mArtists.add(track.getArtistId())) {
                     mQueries.insertArtist(track);
                 }
             }
 
             // Insert album info to the album table
             if (track.getAlbumTitle().length() > 0) {
-                if (!mQueries.albumExists(track.getAlbumId())) {
+                if (mAlbums.add(track.getAlbumId())) {
                     mQueries.insertAlbum(track);
                 }
             }
 
             // Insert track info
-            if (!mQueries.trackExists(track.getId().asInt())) {
-                mQueries.insertTrack(track, index);
-            }
+            mQueries.insertTrack(track, index);
         } catch (SQLiteException e) {
             throw e;
         }
@@ -289,11 +331,7 @@ public class LockerDb
         }
         try {
             if (artist.getName().length() > 0) {
-                if (mQueries.artistExists(artist.getId().asInt())) {
-                    mQueries.updateArtist(artist);
-                } else {
-                    mQueries.insertArtist(artist);
-                }
+                mQueries.insertArtist(artist);
             }
         } catch (SQLiteException e) {
             throw e;
@@ -308,11 +346,7 @@ public class LockerDb
         }
         try {
             if (album.getName().length() > 0) {
-                if (mQueries.albumExists(album.getId().asInt())) {
-                    mQueries.updateAlbum(album);
-                } else {
-                    mQueries.insertAlbum(album);
-                }
+                mQueries.insertAlbum(album);
             }
         } catch (SQLiteException e) {
 
@@ -328,11 +362,7 @@ public class LockerDb
         }
         try {
             if (playlist.getName().length() > 0) {
-                if (mQueries.playlistExists(playlist.getId().asString())) {
-                    mQueries.updatePlaylist(playlist, index);
-                } else {
-                    mQueries.insertPlaylist(playlist, index);
-                }
+                mQueries.insertPlaylist(playlist, index);
             }
         } catch (SQLiteException e) {
             throw e;
@@ -350,6 +380,8 @@ public class LockerDb
             if (progress != null) i = progress.mCurrentSet * progress.mCount;
             for (T o: list) {
                 inserter.insert(o, i);
+                if (progress != null && progress.mSeen != null)
+                    progress.mSeen.add(((LockerData)o).getId().asString());
                 i++;
             }
             mDb.setTransactionSuccessful();
@@ -396,32 +428,91 @@ public class LockerDb
         System.out.println("beginning insertion of " + tracks.size()
                 + " tracks for playlist id " + playlist_id);
         
-        multiInsert(tracks, progress);
+        //The tracks and their playlist rows go in as one transaction
+        mDb.beginTransaction();
+        try {
+            multiInsert(tracks, progress);
         
-        int index = 0 + (progress.mCount * progress.mCurrentSet);
-        ContentValues cv = new ContentValues();
-        for (Track t : tracks) {
-            if (!mQueries.trackInPlaylist(playlist_id, t.getId().asInt())) {
-                cv.put(DbKeys.PLAYLIST_ID, playlist_id);
-                cv.put(DbKeys.TRACK_ID, t.getId().asInt());
-                cv.put(DbKeys.PLAYLIST_INDEX, index);
-                mDb.insert(DbTables.PLAYLIST_TRACKS, DbKeys.UNKNOWN_STRING, cv);
-                index++;
+            int index = 0 + (progress.mCount * progress.mCurrentSet);
+            for (Track t : tracks) {
+                if (!mQueries.trackInPlaylist(playlist_id, t.getId().asInt())) {
+                    mQueries.insertPlaylistTrack(playlist_id, t.getId().asInt(), index);
+                    index++;
+                }
             }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
         }
         return tracks.size() > 0;
     }
     
     
     
-    void updateCache(String id, long time, int state, LockerCache.Progress progress) throws MakeQueryException 
+    //Fetches every track of a playlist into the database on the calling thread.  Used from
+    //the service, which has no UI to drive a RefreshPlaylistTracksTask from.  The old rows are
+    //only replaced once every set has come back, so a failed fetch leaves them as they were.
+    public void refreshPlaylistTracks(String playlistId) throws SQLiteException, IOException, LockerException, MakeQueryException
+    {
+        Progress          p    = mCache.new Progress(20);
+        List<List<Track>> sets = new ArrayList<List<Track>>();
+        while (true) {
+            List<Track> tracks = mLocker.getTracksForPlaylist(playlistId, p.mCount, sets.size());
+            if (tracks.size() == 0) break;
+            sets.add(tracks);
+        }
+        
+        mDb.beginTransaction();
+        try {
+            deleteOldPlaylistTracks(playlistId);
+            for (List<Track> tracks : sets) {
+                insertTracksForPlaylist(tracks, playlistId, p);
+                p.mCurrentSet++;
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+    
+    
+    
+    //Removes the rows of a cache's table that the server no longer returned during an update
+    void deleteStaleRows(String cacheId, Set<String> seen)
     {
+        String table = LockerCache.getTableForCache(cacheId);
+        if (table == null) return;
+        
+        //An empty update is much more likely to be a bad response than an empty locker
+        if (seen.size() == 0) return;
+        
+        int deleted = 0;
+        Cursor c = mDb.query(table, new String[] {DbKeys.ID}, null, null, null, null, null);
+        mDb.beginTransaction();
         try {
-            if (mQueries.cacheExists(id)) {
-                mQueries.updateCache(id, time, state, progress);
-            } else {
-                mQueries.insertCache(id, time, state, progress);
+            while (c.moveToNext()) {
+                String   id   = c.getString(0);
+                String[] args = new String[] {id};
+                if (seen.contains(id)) continue;
+                mDb.delete(table, DbKeys.ID + "=?", args);
+                if (table.equals(DbTables.PLAYLIST))
+                    mDb.delete(DbTables.PLAYLIST_TRACKS, DbKeys.PLAYLIST_ID + "=?", args);
+                else if (table.equals(DbTables.TRACK))
+                    mDb.delete(DbTables.PLAYLIST_TRACKS, DbKeys.TRACK_ID + "=?", args);
+                deleted++;
             }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+            c.close();
+        }
+        Log.w("Mp3Tunes", "Removed " + deleted + " stale rows from: " + table);
+    }
+    
+    void updateCache(String id, long time, int state, LockerCache.Progress progress) throws MakeQueryException 
+    {
+        try {
+            mQueries.updateCache(id, time, state, progress);
         } catch (SQLiteException e) {
             throw e;
         }
@@ -568,6 +659,11 @@ public class LockerDb
         private   DbSearchQuery  mQuery;
         protected DbSearchResult mResult;
         
+        //Set before progress is published when the search could be answered from the database
+        //without going to the server first.  mResult then holds the results merged with the
+        //server's once the task finishes.
+        protected volatile DbSearchResult mLocalResult;
+        
         public RefreshSearchTask(LockerDb db, DbSearchQuery query, String[] track, String[] artist)
         {
             super(db);
@@ -579,16 +675,25 @@ public class LockerDb
         @Override
         protected Boolean doInBackground(Void... params)
         {
+            boolean local = isCached();
             try {
-                refresh();
-                System.out.println("insertion complete");
+                if (local) {
+                    mLocalResult = query();
+                    publish();
+                    if (isSafeCancelled()) return true;
+                }
                 
-                mResult = new DbSearchResult();
-                if (mQuery.mTracks)
-                    mResult.mTracks = querySearch(mQuery.mQuery, Music.Meta.TRACK, mTrack);
-                if (mQuery.mArtists)
-                    mResult.mArtists = querySearch(mQuery.mQuery, Music.Meta.ARTIST, mArtist);
+                try {
+                    refresh();
+                    System.out.println("insertion complete");
+                } catch (Exception e) {
+                    //We already have an answer so a failed refinement is not a failed search
+                    if (!local) throw e;
+                    Log.w("Mp3Tunes", "Unable to refine search from the server");
+                    e.printStackTrace();
+                }
                 
+                mResult = query();
                 return true;
             } catch (Exception e) {
                 e.printStackTrace();
@@ -596,6 +701,29 @@ public class LockerDb
             }
         }
         
+        //The database can answer on its own once every cache the search looks at is complete
+        private boolean isCached()
+        {
+            LockerCache cache = mDb.mCache;
+            if (mQuery.mTracks  && cache.getCacheState(LockerCache.CACHES.TRACK)  != LockerCache.CacheState.CACHED)
+                return false;
+            if (mQuery.mArtists && cache.getCacheState(LockerCache.CACHES.ARTIST) != LockerCache.CacheState.CACHED)
+                return false;
+            if (mQuery.mAlbums  && cache.getCacheState(LockerCache.CACHES.ALBUM)  != LockerCache.CacheState.CACHED)
+                return false;
+            return true;
+        }
+        
+        private DbSearchResult query()
+        {
+            DbSearchResult result = new DbSearchResult();
+            if (mQuery.mTracks)
+                result.mTracks = querySearch(mQuery.mQuery, Music.Meta.TRACK, mTrack);
+            if (mQuery.mArtists)
+                result.mArtists = querySearch(mQuery.mQuery, Music.Meta.ARTIST, mArtist);
+            return result;
+        }
+        
         @Override
         protected boolean dispatch(String cacheId, Progress p, String id)
                 throws SQLiteException, IOException, LockerException,
@@ -610,42 +738,92 @@ public class LockerDb
             results = mDb.mLocker.search(mQuery.mQuery);
         
             DataInserter inserter = mDb.new DataInserter();
-            for (Artist a : results.getArtists()) {
-                inserter.insert(a, 0);
-            }
-            for (Album a : results.getAlbums()) {
-                inserter.insert(a, 0);
-            }
-            for (Track t : results.getTracks()) {
-                inserter.insert(t, 0);
+            mDb.mDb.beginTransaction();
+            try {
+                for (Artist a : results.getArtists()) {
+                    inserter.insert(a, 0);
+                }
+                for (Album a : results.getAlbums()) {
+                    inserter.insert(a, 0);
+                }
+                for (Track t : results.getTracks()) {
+                    inserter.insert(t, 0);
+                }
+                mDb.mDb.setTransactionSuccessful();
+            } finally {
+                mDb.mDb.endTransaction();
             }
             System.out.println("insertion complete");
         }
         
+        //Answers a search from the full text indexes.  Every word of the query has to match the
+        //start of a word in the title, artist or album name.  Names that are the query come first,
+        //then names that start with it, then names that contain it.
         private Cursor querySearch(String query, Music.Meta type, String[] columns)
         {
             String table;
-            String selection;
-            String[] selectionArgs = new String[] {"%" + query + "%"};
+            String search;
+            String name;
             switch (type) {
                 case TRACK:
-                    table = "track";
-                    selection = "lower(title) LIKE lower(?)";
+                    table  = DbTables.TRACK;
+                    search = DbTables.TRACK_SEARCH;
+                    name   = DbKeys.TITLE;
                     break;
                 case ARTIST:
-                    table = "artist";
+                    table   = DbTables.ARTIST;
+                    search  = DbTables.ARTIST_SEARCH;
+                    name    = DbKeys.ARTIST_NAME;
                     columns = Music.ARTIST;
-                    selection = "lower(artist_name) LIKE lower(?)";
                     break;
                 case ALBUM:
-                    table = "album";
-                    selection = "lower(album_name) LIKE lower(?)";
+                    table  = DbTables.ALBUM;
+                    search = DbTables.ALBUM_SEARCH;
+                    name   = DbKeys.ALBUM_NAME;
                     break;
                 default:
                     return null;
             }
-            return mDb.mDb.query(table, columns, selection, selectionArgs, null, null, null,
-                    null);
+            
+            String match = makeMatch(query);
+            if (match == null) return null;
+            
+            StringBuilder sql = new StringBuilder("SELECT ");
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) sql.append(", ");
+                sql.append(columns[i]);
+            }
+            sql.append(" FROM ").append(table)
+               .append(" WHERE ").append(DbKeys.ID).append(" IN (SELECT docid FROM ").append(search)
+               .append(" WHERE ").append(search).append(" MATCH ?)")
+               .append(" ORDER BY CASE")
+               .append(" WHEN lower(").append(name).append(")=lower(?) THEN 0")
+               .append(" WHEN lower(").append(name).append(") LIKE lower(?) THEN 1")
+               .append(" WHEN lower(").append(name).append(") LIKE lower(?) THEN 2")
+               .append(" ELSE 3 END, ").append(name);
+            
+            String[] args = new String[] {match, query, query + "%", "%" + query + "%"};
+            return mDb.mDb.rawQuery(sql.toString(), args);
+        }
+        
+        //Turns what the user typed into an fts query that prefix matches each word.  Only letters
+        //and digits are kept so nothing the user types is read as a query operator.
+        static String makeMatch(String query)
+        {
+            StringBuilder match = new StringBuilder();
+            StringBuilder word  = new StringBuilder();
+            for (int i = 0; i <= query.length(); i++) {
+                char c = i < query.length() ? query.charAt(i) : ' ';
+                if (Character.isLetterOrDigit(c)) {
+                    word.append(c);
+                } else if (word.length() > 0) {
+                    if (match.length() > 0) match.append(' ');
+                    match.append(word).append('*');
+                    word.setLength(0);
+                }
+            }
+            if (match.length() == 0) return null;
+            return match.toString();
         }
         
         static public class DbSearchResult
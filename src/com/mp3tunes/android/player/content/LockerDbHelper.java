@@ -2,16 +2,19 @@ package com.mp3tunes.android.player.content;
 
 
 import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteDatabase.CursorFactory;
+import android.util.Log;
 
 
 class LockerDbHelper extends SQLiteOpenHelper
 {
 
     private static final String DB_NAME = "locker.dat";
-    private static final int DB_VERSION = 10;
+    private static final int DB_VERSION = 13;
     
     private static final String CREATE_TRACK = "CREATE TABLE " + DbTables.TRACK + "(" +
                                                     DbKeys.ID           + " INTEGER PRIMARY KEY," +
@@ -73,6 +76,42 @@ class LockerDbHelper extends SQLiteOpenHelper
                                                     DbKeys.STATE       + " INTEGER"              +
                                                ")";
     
+    //Playlists the user wants kept in the track cache.  These are kept apart from the playlist
+    //rows since those are replaced whenever the playlists are refreshed.
+    private static final String CREATE_PINNED_PLAYLIST = "CREATE TABLE IF NOT EXISTS " + DbTables.PINNED_PLAYLIST + "(" +
+                                                              DbKeys.PLAYLIST_ID + " VARCHAR PRIMARY KEY" +
+                                                         ")";
+    
+    private static final String TRACK_ALBUM_INDEX     = "track_album_title";
+    private static final String TRACK_ARTIST_INDEX    = "track_artist_title";
+    private static final String PLAYLIST_TRACKS_INDEX = "playlist_tracks_playlist";
+    private static final String ARTIST_NAME_INDEX     = "artist_name";
+    private static final String ALBUM_NAME_INDEX      = "album_name";
+    private static final String[] INDEX_NAMES = {
+        TRACK_ALBUM_INDEX, TRACK_ARTIST_INDEX, PLAYLIST_TRACKS_INDEX, ARTIST_NAME_INDEX, ALBUM_NAME_INDEX
+    };
+    
+    //Indexes for the lookups the browsers do.  Each one leads with the column we filter on and
+    //carries the column we sort by so the rows come back in order without a temp b-tree.
+    private static final String[] CREATE_INDEXES = {
+        "CREATE INDEX IF NOT EXISTS " + TRACK_ALBUM_INDEX + " ON " + DbTables.TRACK + "(" +
+            DbKeys.ALBUM_ID + ", " + DbKeys.TITLE + ")",
+        "CREATE INDEX IF NOT EXISTS " + TRACK_ARTIST_INDEX + " ON " + DbTables.TRACK + "(" +
+            DbKeys.ARTIST_ID + ", " + DbKeys.TITLE + ")",
+        "CREATE INDEX IF NOT EXISTS " + PLAYLIST_TRACKS_INDEX + " ON " + DbTables.PLAYLIST_TRACKS + "(" +
+            DbKeys.PLAYLIST_ID + ", " + DbKeys.PLAYLIST_INDEX + ", " + DbKeys.TRACK_ID + ")",
+        "CREATE INDEX IF NOT EXISTS " + ARTIST_NAME_INDEX + " ON " + DbTables.ARTIST + "(" +
+            DbKeys.ARTIST_NAME + ")",
+        "CREATE INDEX IF NOT EXISTS " + ALBUM_NAME_INDEX + " ON " + DbTables.ALBUM + "(" +
+            DbKeys.ALBUM_NAME + ")"
+    };
+    
+    //Full text indexes over the names we search on, one per searchable table.  The docid of an
+    //index row is the _id of the row it indexes.
+    private static final String[] TRACK_SEARCH_COLUMNS  = {DbKeys.TITLE, DbKeys.ARTIST_NAME, DbKeys.ALBUM_NAME};
+    private static final String[] ARTIST_SEARCH_COLUMNS = {DbKeys.ARTIST_NAME};
+    private static final String[] ALBUM_SEARCH_COLUMNS  = {DbKeys.ALBUM_NAME, DbKeys.ARTIST_NAME};
+    
     private static final String DELETE = "DROP TABLE IF EXISTS ";
     
     public LockerDbHelper(Context context, CursorFactory factory)
@@ -90,12 +129,196 @@ class LockerDbHelper extends SQLiteOpenHelper
         db.execSQL(CREATE_PLAYLIST_TRACKS);
         db.execSQL(CREATE_TOKEN);
         db.execSQL(CREATE_CACHE);
+        db.execSQL(CREATE_PINNED_PLAYLIST);
         //db.execSQL(CREATE_CURRENT_PLAYLIST);
+        createIndexes(db);
+        createSearch(db);
+    }
+    
+    static private void createSearch(SQLiteDatabase db)
+    {
+        createSearch(db, DbTables.TRACK,  DbTables.TRACK_SEARCH,  TRACK_SEARCH_COLUMNS);
+        createSearch(db, DbTables.ARTIST, DbTables.ARTIST_SEARCH, ARTIST_SEARCH_COLUMNS);
+        createSearch(db, DbTables.ALBUM,  DbTables.ALBUM_SEARCH,  ALBUM_SEARCH_COLUMNS);
+    }
+    
+    //Creates the index and the triggers that keep it in step with its table.  INSERT OR REPLACE
+    //does not fire delete triggers, so the row is removed from the index before it is added
+    //again.  This has to happen after the insert: a BEFORE trigger also fires for an INSERT OR
+    //IGNORE that is then ignored, which would drop the row from the index for good.
+    static private void createSearch(SQLiteDatabase db, String table, String search, String[] columns)
+    {
+        StringBuilder names  = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        for (String column : columns) {
+            names.append(", ").append(column);
+            values.append(", new.").append(column);
+        }
+        
+        db.execSQL("CREATE VIRTUAL TABLE " + search + " USING fts3(" + names.substring(2) + ")");
+        db.execSQL("CREATE TRIGGER " + search + "_insert AFTER INSERT ON " + table + " BEGIN " +
+                       "DELETE FROM " + search + " WHERE docid=new." + DbKeys.ID + "; " +
+                       "INSERT INTO " + search + "(docid" + names + ") VALUES (new." + DbKeys.ID + values + "); " +
+                   "END");
+        db.execSQL("CREATE TRIGGER " + search + "_update AFTER UPDATE ON " + table + " BEGIN " +
+                       "DELETE FROM " + search + " WHERE docid=old." + DbKeys.ID + "; " +
+                       "INSERT INTO " + search + "(docid" + names + ") VALUES (new." + DbKeys.ID + values + "); " +
+                   "END");
+        db.execSQL("CREATE TRIGGER " + search + "_delete AFTER DELETE ON " + table + " BEGIN " +
+                       "DELETE FROM " + search + " WHERE docid=old." + DbKeys.ID + "; " +
+                   "END");
+    }
+    
+    static private void fillSearch(SQLiteDatabase db, String table, String search, String[] columns)
+    {
+        StringBuilder names = new StringBuilder();
+        for (String column : columns) {
+            names.append(", ").append(column);
+        }
+        db.execSQL("DELETE FROM " + search);
+        db.execSQL("INSERT INTO " + search + "(docid" + names + ") " + 
+                   "SELECT " + DbKeys.ID + names + " FROM " + table);
+    }
+    
+    static private boolean checkSearch(SQLiteDatabase db, String table, String search)
+    {
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + table, null) ==
+               DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + search, null);
+    }
+    
+    static private void createIndexes(SQLiteDatabase db)
+    {
+        for (String index : CREATE_INDEXES) {
+            db.execSQL(index);
+        }
+    }
 
+    //An upgrade from one version of the schema to the next.  upgrade() makes the schema change,
+    //backfill() fills in whatever the change needs from the rows we already have and check()
+    //makes sure the database really is at mVersion afterwards.
+    static abstract class Migration
+    {
+        final int mVersion;
+        
+        Migration(int version)
+        {
+            mVersion = version;
+        }
+        
+        abstract void upgrade(SQLiteDatabase db);
+        
+        void backfill(SQLiteDatabase db)
+        {
+        }
+        
+        boolean check(SQLiteDatabase db)
+        {
+            return true;
+        }
+    }
+    
+    //Oldest schema we know how to migrate from.  Anything older is rebuilt from scratch.
+    private static final int FIRST_MIGRATABLE_VERSION = 10;
+    
+    //One entry per version after FIRST_MIGRATABLE_VERSION, in order
+    private static final Migration[] MIGRATIONS = {
+        new Migration(11) {
+            void upgrade(SQLiteDatabase db)
+            {
+                createIndexes(db);
+            }
+            
+            boolean check(SQLiteDatabase db)
+            {
+                return countIndexes(db) == CREATE_INDEXES.length;
+            }
+        },
+        new Migration(12) {
+            void upgrade(SQLiteDatabase db)
+            {
+                createSearch(db);
+            }
+            
+            void backfill(SQLiteDatabase db)
+            {
+                fillSearch(db, DbTables.TRACK,  DbTables.TRACK_SEARCH,  TRACK_SEARCH_COLUMNS);
+                fillSearch(db, DbTables.ARTIST, DbTables.ARTIST_SEARCH, ARTIST_SEARCH_COLUMNS);
+                fillSearch(db, DbTables.ALBUM,  DbTables.ALBUM_SEARCH,  ALBUM_SEARCH_COLUMNS);
+            }
+            
+            boolean check(SQLiteDatabase db)
+            {
+                return checkSearch(db, DbTables.TRACK,  DbTables.TRACK_SEARCH)  &&
+                       checkSearch(db, DbTables.ARTIST, DbTables.ARTIST_SEARCH) &&
+                       checkSearch(db, DbTables.ALBUM,  DbTables.ALBUM_SEARCH);
+            }
+        },
+        new Migration(13) {
+            void upgrade(SQLiteDatabase db)
+            {
+                db.execSQL(CREATE_PINNED_PLAYLIST);
+            }
+        }
+    };
+    
+    static private long countIndexes(SQLiteDatabase db)
+    {
+        StringBuilder query = new StringBuilder("SELECT COUNT(*) FROM sqlite_master WHERE type='index' AND name IN (");
+        for (int i = 0; i < INDEX_NAMES.length; i++) {
+            if (i > 0) query.append(", ");
+            query.append("?");
+        }
+        query.append(")");
+        return DatabaseUtils.longForQuery(db, query.toString(), INDEX_NAMES);
+    }
+    
+    static private Migration getMigration(int version)
+    {
+        for (Migration m : MIGRATIONS) {
+            if (m.mVersion == version) return m;
+        }
+        return null;
     }
 
+    //SQLiteOpenHelper runs this in a transaction, so if any step fails we can still fall back
+    //to rebuilding the database and nothing half migrated is ever committed.
     @Override
     public void onUpgrade( SQLiteDatabase db, int oldV, int newV )
+    {
+        if (oldV < FIRST_MIGRATABLE_VERSION) {
+            Log.w("Mp3Tunes", "No migration from locker db version " + oldV + ", rebuilding");
+            rebuild(db);
+            return;
+        }
+        
+        for (int version = oldV + 1; version <= newV; version++) {
+            Migration m = getMigration(version);
+            if (m == null) {
+                Log.w("Mp3Tunes", "No migration to locker db version " + version + ", rebuilding");
+                rebuild(db);
+                return;
+            }
+            
+            long start = System.currentTimeMillis();
+            try {
+                m.upgrade(db);
+                m.backfill(db);
+                if (!m.check(db)) {
+                    Log.w("Mp3Tunes", "Check after migration to locker db version " + version + " failed, rebuilding");
+                    rebuild(db);
+                    return;
+                }
+            } catch (SQLException e) {
+                Log.w("Mp3Tunes", Log.getStackTraceString(e));
+                rebuild(db);
+                return;
+            }
+            Log.w("Mp3Tunes", "Migrated locker db to version " + version + " in " + 
+                    (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+    
+    private void rebuild(SQLiteDatabase db)
     {
         //db.execSQL(DELETE + DbTables.CURRENT_PLAYLIST);
         db.execSQL(DELETE + DbTables.ALBUM);
@@ -105,6 +328,10 @@ class LockerDbHelper extends SQLiteOpenHelper
         db.execSQL(DELETE + DbTables.PLAYLIST_TRACKS);
         db.execSQL(DELETE + DbTables.TOKEN);
         db.execSQL(DELETE + DbTables.CACHE);
+        db.execSQL(DELETE + DbTables.TRACK_SEARCH);
+        db.execSQL(DELETE + DbTables.ARTIST_SEARCH);
+        db.execSQL(DELETE + DbTables.ALBUM_SEARCH);
+        db.execSQL(DELETE + DbTables.PINNED_PLAYLIST);
         onCreate( db );
     }
 
@@ -0,0 +1,159 @@
+package com.mp3tunes.android.player.content;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import com.binaryelysium.mp3tunes.api.LockerException;
+import com.mp3tunes.android.player.content.LockerCache.Progress;
+import com.mp3tunes.android.player.content.Queries.MakeQueryException;
+
+/**
+ * A RefreshTask for caches whose sets can be fetched independently of each other.  Instead of
+ * fetching and inserting one set at a time we keep a few set requests in flight while this
+ * task's thread writes the finished sets to the database in order.  Since sets are committed
+ * in order the Progress of the cache always points at the first set that has not been written,
+ * so an interrupted refresh resumes exactly like a sequential one.
+ *
+ * The set size is adjusted to the latency we see.  Sizes only ever double or halve and a new
+ * size is only used when it lines up with the current offset into the locker, so every set we
+ * ask for is still a whole set of the size we ask for it with.
+ */
+abstract public class PipelinedRefreshTask<T> extends RefreshTask
+{
+    private static final int  MAX_IN_FLIGHT = 3;
+    private static final int  MIN_COUNT     = 20;
+    private static final int  MAX_COUNT     = 320;
+    private static final long FAST_SET      = 1500;
+    private static final long SLOW_SET      = 5000;
+
+    public PipelinedRefreshTask(LockerDb db, String cacheId, String id)
+    {
+        super(db, cacheId, id);
+    }
+
+    //Called from worker threads. It must not touch the database.
+    abstract protected List<T> fetch(String id, int count, int set) throws IOException, LockerException;
+
+    protected boolean store(List<T> items, Progress p, String id) throws SQLiteException, IOException, MakeQueryException
+    {
+        return mDb.multiInsert(items, p);
+    }
+
+    @Override
+    protected boolean dispatch(String cacheId, Progress p, String id)
+            throws SQLiteException, IOException, LockerException, MakeQueryException
+    {
+        return store(fetch(id, p.mCount, p.mCurrentSet), p, id);
+    }
+
+    private class SetRequest implements Callable<List<T>>
+    {
+        final String mSetId;
+        final long   mOffset;
+        final int    mCount;
+        long         mLatency;
+        Future<List<T>> mFuture;
+
+        SetRequest(String id, long offset, int count)
+        {
+            mSetId  = id;
+            mOffset = offset;
+            mCount  = count;
+        }
+
+        int getSet()
+        {
+            return (int)(mOffset / mCount);
+        }
+
+        public List<T> call() throws Exception
+        {
+            long start = System.currentTimeMillis();
+            try {
+                return fetch(mSetId, mCount, getSet());
+            } finally {
+                mLatency = System.currentTimeMillis() - start;
+            }
+        }
+    }
+
+    @Override
+    protected void fill(String cacheId, Progress p, String id) throws Exception
+    {
+        //We only need the lock while we are writing
+        unlock();
+
+        ExecutorService        pool     = Executors.newFixedThreadPool(MAX_IN_FLIGHT);
+        LinkedList<SetRequest> inFlight = new LinkedList<SetRequest>();
+        int                    count    = p.mCount;
+        long                   offset   = (long)p.mCurrentSet * p.mCount;
+        try {
+            while (true) {
+                while (inFlight.size() < MAX_IN_FLIGHT) {
+                    SetRequest set = new SetRequest(id, offset, count);
+                    set.mFuture = pool.submit(set);
+                    inFlight.add(set);
+                    offset += count;
+                }
+
+                SetRequest set = inFlight.removeFirst();
+                List<T> items;
+                try {
+                    items = set.mFuture.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception)
+                        throw (Exception)e.getCause();
+                    throw e;
+                }
+
+                lock();
+                try {
+                    p.mCount      = set.mCount;
+                    p.mCurrentSet = set.getSet();
+                    if (store(items, p, id)) p.mCurrentSet++;
+                } finally {
+                    unlock();
+                }
+
+                //Only an empty set marks the end.  The parsers drop entries they can not read so a
+                //short set can come back from the middle of the locker.  Anything still in flight
+                //is past the end.
+                if (items.size() == 0) {
+                    p.mReachedEnd = true;
+                    for (SetRequest s : inFlight) s.mFuture.cancel(true);
+                    inFlight.clear();
+                    break;
+                }
+                publish();
+
+                count = adjustCount(count, set.mLatency, offset);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        lock();
+    }
+
+    private int adjustCount(int count, long latency, long offset)
+    {
+        int next = count;
+        if (latency < FAST_SET && count * 2 <= MAX_COUNT) {
+            next = count * 2;
+        } else if (latency > SLOW_SET && count / 2 >= MIN_COUNT && count % 2 == 0) {
+            next = count / 2;
+        }
+        if (next == count || offset % next != 0) return count;
+        Log.w("Mp3Tunes", "Refresh of " + mCacheId + " changing set size from " + count + " to " + next);
+        return next;
+    }
+}
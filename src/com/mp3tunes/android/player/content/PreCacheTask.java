@@ -25,7 +25,7 @@ public class PreCacheTask extends RefreshTask
     private void cacheData(String cache) throws SQLiteException, IOException, LockerException, MakeQueryException
     {
         if (mDb.mCache.getCacheState(cache) == LockerCache.CacheState.UNCACHED) {
-            mDb.mCache.beginCaching(cache, System.currentTimeMillis());
+            mDb.mCache.beginCaching(cache, getServerUpdate(cache));
             LockerCache.Progress p = mDb.mCache.getProgress(cache);
             if (refreshDispatcher(cache, p))
                 p.mCurrentSet++;
@@ -24,18 +24,8 @@ public class Queries
     private SQLiteStatement    mInsertArtist;
     private SQLiteStatement    mInsertAlbum;
     private SQLiteStatement    mInsertPlaylist;
-
-    private SQLiteStatement    mUpdateArtist;
-    private SQLiteStatement    mUpdateAlbum;
-    private SQLiteStatement    mUpdatePlaylist;
-
-    private SQLiteStatement    mArtistExists;
-    private SQLiteStatement    mAlbumExists;
-    private SQLiteStatement    mTrackExists;
-    private SQLiteStatement    mPlaylistExists;
+    private SQLiteStatement    mInsertPlaylistTrack;
     
-    private SQLiteStatement    mCacheExists;
-    private SQLiteStatement    mInsertCache;
     private SQLiteStatement    mUpdateCache;
     
     private SQLiteStatement    mTrackInPlaylist;
@@ -49,44 +39,11 @@ public class Queries
         mInsertArtist          = makeInsertArtistStatement(mDb.mDb);
         mInsertAlbum           = makeInsertAlbumStatement(mDb.mDb);
         mInsertPlaylist        = makeInsertPlaylistStatement(mDb.mDb);
-        mUpdateArtist          = makeUpdateArtistStatement(mDb.mDb);
-        mUpdateAlbum           = makeUpdateAlbumStatement(mDb.mDb);
-        mUpdatePlaylist        = makeUpdatePlaylistStatement(mDb.mDb);
-        mArtistExists          = makeExistsQuery(mDb.mDb, DbTables.ARTIST);
-        mAlbumExists           = makeExistsQuery(mDb.mDb, DbTables.ALBUM);
-        mTrackExists           = makeExistsQuery(mDb.mDb, DbTables.TRACK);
-        mPlaylistExists        = makeExistsQuery(mDb.mDb, DbTables.PLAYLIST);
-        mCacheExists           = makeExistsQuery(mDb.mDb, DbTables.CACHE);
-        mInsertCache           = makeInsertCacheStatement(mDb.mDb);
-        mUpdateCache           = makeUpdateCacheStatement(mDb.mDb);;
+        mInsertPlaylistTrack   = makeInsertPlaylistTrackStatement(mDb.mDb);
+        mUpdateCache           = makeUpdateCacheStatement(mDb.mDb);
         mTrackInPlaylist       = makeTrackInPlaylistQuery(mDb.mDb);
     }
 
-    public boolean artistExists(int id) throws MakeQueryException
-    {
-        return runExistsQuery(mDb.mDb, mArtistExists, DbTables.ARTIST, Integer.toString(id));
-    }
-    
-    public boolean albumExists(int id) throws MakeQueryException
-    {
-        return runExistsQuery(mDb.mDb, mAlbumExists, DbTables.ALBUM, Integer.toString(id));
-    }
-    
-    public boolean trackExists(int id) throws MakeQueryException
-    {
-        return runExistsQuery(mDb.mDb, mTrackExists, DbTables.TRACK, Integer.toString(id));
-    }
-    
-    public boolean playlistExists(String id) throws MakeQueryException
-    {
-        return runExistsQuery(mDb.mDb, mPlaylistExists, DbTables.PLAYLIST, id);
-    }
-    
-    public boolean cacheExists(String id) throws MakeQueryException
-    {
-        return runExistsQuery(mDb.mDb, mCacheExists, DbTables.CACHE, id);
-    }
-    
     public boolean trackInPlaylist(String playlist, int track) throws MakeQueryException
     {
         mTrackInPlaylist.bindString(1, playlist);
@@ -99,50 +56,15 @@ public class Queries
         }
     }
     
-    public boolean updateArtist(Artist a) throws MakeQueryException
+    public void insertPlaylistTrack(String playlist, int track, int index) throws MakeQueryException
     {
-        assertLockerId(a.getId());
-        
-        mUpdateArtist.bindString(1, a.getName());
-        mUpdateArtist.bindLong(  2, a.getAlbumCount());
-        mUpdateArtist.bindLong(  3, a.getTrackCount());
-        mUpdateArtist.bindLong(  4, a.getId().asInt());
-        mUpdateArtist.execute();
-        return false;
+        mInsertPlaylistTrack.bindString(1, playlist);
+        mInsertPlaylistTrack.bindLong(  2, track);
+        mInsertPlaylistTrack.bindLong(  3, index);
+        mInsertPlaylistTrack.execute();
     }
     
-    public boolean updateAlbum(Album a) throws MakeQueryException
-    {
-        assertLockerId(a.getId());
-        
-        String year;
-        if (a.getYear() != null)
-            year = a.getYear();
-        else
-            year = DbKeys.UNKNOWN_STRING;
-        mUpdateAlbum.bindString(1, a.getName());
-        mUpdateAlbum.bindString(2, a.getArtistName());
-        mUpdateAlbum.bindLong(  3, a.getArtistId());
-        mUpdateAlbum.bindString(4, year);
-        mUpdateAlbum.bindLong(  5, a.getTrackCount());
-        mUpdateAlbum.bindString(6, DbKeys.UNKNOWN_STRING);
-        mUpdateAlbum.bindLong(  7, a.getId().asInt());
-        mUpdateAlbum.execute();
-        return false;
-    }
-    
-    public boolean updatePlaylist(Playlist p, int index) throws MakeQueryException
-    {
-        mUpdatePlaylist.bindString(1, p.getName());
-        mUpdatePlaylist.bindLong(  2, p.getCount());
-        mUpdatePlaylist.bindString(3, p.getFileName());
-        mUpdatePlaylist.bindLong(  4, index);
-        mUpdatePlaylist.bindString(5, p.getId().asString());
-        mUpdatePlaylist.execute();
-        return false;
-    }
-    
-    
+    //The insert statements are all upserts, so callers never have to check whether a row exists
     public boolean insertArtist(Track t) throws MakeQueryException
     {
         mInsertArtistFromTrack.bindLong(  1, t.getArtistId());
@@ -228,42 +150,14 @@ public class Queries
             count = progress.mCount;
         }
         
-        mUpdateCache.bindLong(1, time);
-        mUpdateCache.bindLong(2, set);
-        mUpdateCache.bindLong(3, count);
-        mUpdateCache.bindLong(4, state);
-        mUpdateCache.bindString(5, id);
+        mUpdateCache.bindString(1, id);
+        mUpdateCache.bindLong(2, time);
+        mUpdateCache.bindLong(3, set);
+        mUpdateCache.bindLong(4, count);
+        mUpdateCache.bindLong(5, state);
         mUpdateCache.execute();
     }
 
-    public void insertCache(String id, long time, int state, Progress progress) throws MakeQueryException
-    {
-        int set   = 0;
-        int count = 0;
-        if (progress != null) {
-            set   = progress.mCurrentSet;
-            count = progress.mCount;
-        }
-        
-        mInsertCache.bindString(1, id);
-        mInsertCache.bindLong(2, time);
-        mInsertCache.bindLong(3, set);
-        mInsertCache.bindLong(4, count);
-        mInsertCache.bindLong(5, state);
-        mInsertCache.execute();
-    }
-
-    static private boolean runExistsQuery(SQLiteDatabase db, SQLiteStatement stmt, String table, String id) throws MakeQueryException
-    {
-        stmt.bindString(1, id);
-        try {
-            stmt.simpleQueryForString();
-            return true;
-        } catch (SQLiteDoneException e) {
-            return false;
-        }
-    }
-    
     static private SQLiteStatement makeTrackInPlaylistQuery(SQLiteDatabase db) throws MakeQueryException
     {
         String query = 
@@ -277,56 +171,10 @@ public class Queries
     }
     
     
-    static private SQLiteStatement makeExistsQuery(SQLiteDatabase db, String table) throws MakeQueryException
-    {
-        String query = 
-            "SELECT " + DbKeys.ID + 
-            " FROM "  + table +
-            " WHERE " + DbKeys.ID + "=?";
-        return makeStatement(db, query);
-    }
-    
-    
-    static private SQLiteStatement makeUpdateArtistStatement(SQLiteDatabase db) throws MakeQueryException
-    {
-        String query = 
-            "UPDATE " + DbTables.ARTIST  + " "    +
-            "SET "    + DbKeys.ARTIST_NAME + "=?, " +
-                        DbKeys.ALBUM_COUNT + "=?, " +
-                        DbKeys.TRACK_COUNT + "=? "  +
-            "WHERE "  + DbKeys.ID          + "=?";
-        return makeStatement(db, query);
-    }
-    
-    static private SQLiteStatement makeUpdateAlbumStatement(SQLiteDatabase db) throws MakeQueryException
-    {
-        String query = 
-            "UPDATE " + DbTables.ALBUM   + " "    +
-            "SET "    + DbKeys.ALBUM_NAME  + "=?, " +
-                        DbKeys.ARTIST_NAME + "=?, " +
-                        DbKeys.ARTIST_ID   + "=?, " +
-                        DbKeys.YEAR        + "=?, " +
-                        DbKeys.TRACK_COUNT + "=?, " +
-                        DbKeys.COVER_URL   + "=? "  +
-            "WHERE "  + DbKeys.ID          + "=?";
-        return makeStatement(db, query);
-    }
-    
-    static private SQLiteStatement makeUpdatePlaylistStatement(SQLiteDatabase db) throws MakeQueryException
-    {
-        String query = 
-            "UPDATE " + DbTables.PLAYLIST   + " "    +
-            "SET "    + DbKeys.FILE_COUNT     + "=?, " +
-                        DbKeys.FILE_COUNT     + "=?, " +
-                        DbKeys.FILE_NAME      + "=?, " +
-                        DbKeys.PLAYLIST_ORDER + "=? "  +
-            "WHERE " +  DbKeys.ID             + "=?";
-        return makeStatement(db, query);
-    }
-    
     static private SQLiteStatement makeInsertArtistFromTrackStatement(SQLiteDatabase db) throws MakeQueryException
     {
-        String query = "INSERT INTO " + DbTables.ARTIST + " (" +
+        //Tracks only know the name of their artist so never clobber a full row
+        String query = "INSERT OR IGNORE INTO " + DbTables.ARTIST + " (" +
                             DbKeys.ID          + ", " + 
                             DbKeys.ARTIST_NAME +
         		       ") VALUES (?, ?)";
@@ -335,7 +183,7 @@ public class Queries
     
     static private SQLiteStatement makeInsertAlbumFromTrackStatement(SQLiteDatabase db) throws MakeQueryException
     {
-        String query = "INSERT INTO " + DbTables.ALBUM + " (" +
+        String query = "INSERT OR IGNORE INTO " + DbTables.ALBUM + " (" +
                             DbKeys.ID + ", " +
                             DbKeys.ALBUM_NAME + ", " +
                             DbKeys.ARTIST_ID +
@@ -345,7 +193,9 @@ public class Queries
     
     static private SQLiteStatement makeInsertTrackStatement(SQLiteDatabase db)
     {
-        String query = "INSERT INTO " + DbTables.TRACK + " (" +
+        //The ordinal of a track we already have is kept since tracks are also written from
+        //search and playlist results
+        String query = "INSERT OR REPLACE INTO " + DbTables.TRACK + " (" +
                             DbKeys.ID           + ", " +
                             DbKeys.PLAY_URL     + ", " +
                             DbKeys.DOWNLOAD_URL + ", " +
@@ -357,13 +207,15 @@ public class Queries
                             DbKeys.ALBUM_ID     + ", " +
                             DbKeys.TRACK_LENGTH + ", " +
                             DbKeys.COVER_URL    +
-                       ")  VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+                       ")  VALUES (?1, ?2, ?3, ?4, " +
+                            "COALESCE((SELECT " + DbKeys.ORDINAL + " FROM " + DbTables.TRACK + " WHERE " + DbKeys.ID + "=?1), ?5), " +
+                            "?6, ?7, ?8, ?9, ?10, ?11)";
         return makeStatement(db, query);
     }
     
     static private SQLiteStatement makeInsertAlbumStatement(SQLiteDatabase db)
     {
-        String query = "INSERT INTO " + DbTables.ALBUM + " (" +
+        String query = "INSERT OR REPLACE INTO " + DbTables.ALBUM + " (" +
                             DbKeys.ID          + ", " +
                             DbKeys.ALBUM_NAME  + ", " +
                             DbKeys.ARTIST_NAME + ", " +
@@ -377,7 +229,7 @@ public class Queries
     
     static private SQLiteStatement makeInsertArtistStatement(SQLiteDatabase db)
     {
-        String query = "INSERT INTO " + DbTables.ARTIST + " (" +
+        String query = "INSERT OR REPLACE INTO " + DbTables.ARTIST + " (" +
                             DbKeys.ID          + ", " +
                             DbKeys.ARTIST_NAME + ", " +
                             DbKeys.ALBUM_COUNT + ", " +
@@ -388,7 +240,7 @@ public class Queries
     
     static private SQLiteStatement makeInsertPlaylistStatement(SQLiteDatabase db)
     {
-        String query = "INSERT INTO " + DbTables.PLAYLIST + " (" +
+        String query = "INSERT OR REPLACE INTO " + DbTables.PLAYLIST + " (" +
                             DbKeys.ID             + ", " +
                             DbKeys.PLAYLIST_NAME  + ", " +
                             DbKeys.FILE_COUNT     + ", " +
@@ -398,27 +250,25 @@ public class Queries
         return makeStatement(db, query);
     }
     
-    static  private SQLiteStatement makeInsertCacheStatement(SQLiteDatabase db)
+    static private SQLiteStatement makeInsertPlaylistTrackStatement(SQLiteDatabase db)
     {
-        String query = "INSERT INTO " + DbTables.CACHE + " (" +
-                            DbKeys.ID          + ", " +
-                            DbKeys.LAST_UPDATE + ", " +
-                            DbKeys.SET         + ", " +
-                            DbKeys.COUNT       + ", " +
-                            DbKeys.STATE       + "" +
-                       ") VALUES (?, ?, ?, ?, ?)";
+        String query = "INSERT INTO " + DbTables.PLAYLIST_TRACKS + " (" +
+                            DbKeys.PLAYLIST_ID    + ", " +
+                            DbKeys.TRACK_ID       + ", " +
+                            DbKeys.PLAYLIST_INDEX +
+                       ") VALUES (?, ?, ?)";
         return makeStatement(db, query);
     }
     
     static  private SQLiteStatement makeUpdateCacheStatement(SQLiteDatabase db)
     {
-        String query = 
-            "UPDATE " + DbTables.CACHE     + " "    +
-            "SET "    + DbKeys.LAST_UPDATE + "=?, " +
-                        DbKeys.SET         + "=?, " +
-                        DbKeys.COUNT       + "=?, " +
-                        DbKeys.STATE       + "=? "  +
-            "WHERE " +  DbKeys.ID          + "=?";
+        String query = "INSERT OR REPLACE INTO " + DbTables.CACHE + " (" +
+                            DbKeys.ID          + ", " +
+                            DbKeys.LAST_UPDATE + ", " +
+                            DbKeys.SET         + ", " +
+                            DbKeys.COUNT       + ", " +
+                            DbKeys.STATE       +
+                       ") VALUES (?, ?, ?, ?, ?)";
         return makeStatement(db, query);
     }
     
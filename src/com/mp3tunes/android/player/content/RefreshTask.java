@@ -51,29 +51,34 @@ abstract public class RefreshTask extends AsyncTaskSynchronizedCancel <Void, Voi
     {
         try {
             int state = mDb.mCache.getCacheState(cacheId);
-            if (state != LockerCache.CacheState.CACHED) {
-                if (state == LockerCache.CacheState.UNCACHED)
-                    mDb.mCache.beginCaching(cacheId, System.currentTimeMillis());
-                LockerCache.Progress p = mDb.mCache.getProgress(cacheId);
-                
-                //here we are beginning to enter a critical section 
-                //Log.w("Mp3tunes", "Refresh locking...");
-                lock();
-                //Log.w("Mp3tunes", "Refresh locked...");
-                while (dispatch(cacheId, p, id)) {
-                    p.mCurrentSet++;
-                    //Log.w("Mp3tunes", "Refresh unlocking...");
-                    unlock();
-                    publish();
-                    //Log.w("Mp3tunes", "Refresh locking...");
-                    lock();
-                    //Log.w("Mp3tunes", "Refresh locked...");
-                }
-                Log.w("Mp3Tunes", "Finished Caching: " + cacheId);
-                mDb.mCache.finishCaching(cacheId);
-                Log.w("Mp3tunes", "Refresh unlocking...");
-                unlock();
+            if (state == LockerCache.CacheState.CACHED) {
+                if (!mDb.mCache.needsCheck(cacheId))
+                    return true;
+                long update = getServerUpdate(cacheId);
+                mDb.mCache.setChecked(cacheId);
+                if (!mDb.mCache.isStale(cacheId, update)) 
+                    return true;
+                Log.w("Mp3Tunes", "Locker changed since last sync of: " + cacheId);
+                mDb.mCache.beginUpdating(cacheId, update);
+            } else if (state == LockerCache.CacheState.UNCACHED) {
+                mDb.mCache.beginCaching(cacheId, getServerUpdate(cacheId));
             }
+            LockerCache.Progress p = mDb.mCache.getProgress(cacheId);
+            
+            //here we are beginning to enter a critical section 
+            //Log.w("Mp3tunes", "Refresh locking...");
+            lock();
+            //Log.w("Mp3tunes", "Refresh locked...");
+            fill(cacheId, p, id);
+            Log.w("Mp3Tunes", "Finished Caching: " + cacheId);
+            //Rows are only stale if we walked every set.  A sync that stopped early has not seen them.
+            if (p.mSeen != null && p.mReachedEnd) {
+                mDb.deleteStaleRows(cacheId, p.mSeen);
+            }
+            p.mSeen = null;
+            mDb.mCache.finishCaching(cacheId);
+            Log.w("Mp3tunes", "Refresh unlocking...");
+            unlock();
             return true;
         } catch (Exception e) {
             e.printStackTrace();
@@ -81,6 +86,33 @@ abstract public class RefreshTask extends AsyncTaskSynchronizedCancel <Void, Voi
         return false;
     }
     
+    //Walks the sets of the cache one after another starting at p.mCurrentSet.  This is called
+    //with the lock held and must return with it held.
+    protected void fill(String cacheId, LockerCache.Progress p, String id) throws Exception
+    {
+        while (dispatch(cacheId, p, id)) {
+            p.mCurrentSet++;
+            //Log.w("Mp3tunes", "Refresh unlocking...");
+            unlock();
+            publish();
+            //Log.w("Mp3tunes", "Refresh locking...");
+            lock();
+            //Log.w("Mp3tunes", "Refresh locked...");
+        }
+        p.mReachedEnd = true;
+    }
+    
+    //The server timestamp of the last change to the data backing this cache or 0 if we could not find out
+    protected long getServerUpdate(String cacheId)
+    {
+        try {
+            return mDb.mLocker.getLastUpdate(LockerCache.getUpdateType(cacheId));
+        } catch (Exception e) {
+            Log.w("Mp3Tunes", "Unable to get last update for: " + cacheId);
+        }
+        return 0;
+    }
+    
     protected void cleanUp()
     {
         try {
@@ -0,0 +1,147 @@
+package com.mp3tunes.android.player.service;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The byte ranges of a file that have been written so far.  Ranges are half open, [start, end),
+ * and touching or overlapping ranges are merged as they are added, so the map only ever holds
+ * the disjoint runs of bytes we have.
+ */
+class ByteRangeMap
+{
+    private TreeMap<Long, Long> mRanges = new TreeMap<Long, Long>();
+
+    synchronized public void add(long start, long end)
+    {
+        if (end <= start) return;
+
+        //Merge with a range that starts before us and reaches us
+        Map.Entry<Long, Long> before = floor(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end   = Math.max(end, before.getValue());
+        }
+
+        //Swallow every range that starts inside of us
+        Iterator<Map.Entry<Long, Long>> it = mRanges.tailMap(start).entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Long> e = it.next();
+            if (e.getKey() > end) break;
+            end = Math.max(end, e.getValue());
+            it.remove();
+        }
+        mRanges.put(start, end);
+    }
+
+    //The end of the run of bytes we have starting at offset, or offset if we do not have it
+    synchronized public long contiguousFrom(long offset)
+    {
+        Map.Entry<Long, Long> e = floor(offset);
+        if (e == null || e.getValue() <= offset) return offset;
+        return e.getValue();
+    }
+
+    //The start of the first range after offset, or Long.MAX_VALUE if there is none
+    synchronized public long nextStart(long offset)
+    {
+        SortedMap<Long, Long> tail = mRanges.tailMap(offset + 1);
+        if (tail.isEmpty()) return Long.MAX_VALUE;
+        return tail.firstKey();
+    }
+
+    //Takes [start, end) out of the map, splitting any range that straddles it
+    synchronized public void remove(long start, long end)
+    {
+        if (end <= start) return;
+
+        Map.Entry<Long, Long> before = floor(start);
+        if (before != null && before.getKey() < start && before.getValue() > start) {
+            long key   = before.getKey();
+            long value = before.getValue();
+            mRanges.put(key, start);
+            if (value > end) {
+                mRanges.put(end, value);
+                return;
+            }
+        }
+
+        long last = -1;
+        Iterator<Map.Entry<Long, Long>> it = mRanges.tailMap(start).entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Long> e = it.next();
+            if (e.getKey() >= end) break;
+            last = e.getValue();
+            it.remove();
+        }
+        if (last > end) mRanges.put(end, last);
+    }
+
+    synchronized public boolean contains(long start, long end)
+    {
+        return contiguousFrom(start) >= end;
+    }
+
+    synchronized public long size()
+    {
+        long size = 0;
+        for (Map.Entry<Long, Long> e : mRanges.entrySet()) {
+            size += e.getValue() - e.getKey();
+        }
+        return size;
+    }
+
+    //A copy that later writes to this map do not change
+    synchronized public ByteRangeMap copy()
+    {
+        ByteRangeMap copy = new ByteRangeMap();
+        copy.mRanges.putAll(mRanges);
+        return copy;
+    }
+
+    synchronized public void clear()
+    {
+        mRanges.clear();
+    }
+
+    //start-end,start-end,...
+    synchronized public String encode()
+    {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<Long, Long> e : mRanges.entrySet()) {
+            if (builder.length() > 0) builder.append(',');
+            builder.append(e.getKey()).append('-').append(e.getValue());
+        }
+        return builder.toString();
+    }
+
+    //Adds the ranges written by encode()
+    synchronized public void decode(String ranges) throws NumberFormatException
+    {
+        if (ranges == null || ranges.length() == 0) return;
+        for (String range : ranges.split(",")) {
+            int minus = range.indexOf('-');
+            if (minus < 0) throw new NumberFormatException("Bad range: " + range);
+            add(Long.parseLong(range.substring(0, minus)), Long.parseLong(range.substring(minus + 1)));
+        }
+    }
+
+    //TreeMap.floorEntry() is not available before API level 9
+    private Map.Entry<Long, Long> floor(long offset)
+    {
+        Long key = null;
+        if (mRanges.containsKey(offset)) {
+            key = offset;
+        } else {
+            SortedMap<Long, Long> head = mRanges.headMap(offset);
+            if (!head.isEmpty()) key = head.lastKey();
+        }
+        if (key == null) return null;
+        for (Map.Entry<Long, Long> e : mRanges.tailMap(key).entrySet()) {
+            return e;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,314 @@
+package com.mp3tunes.android.player.service;
+
+import java.io.File;
+import java.util.Collection;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import com.mp3tunes.android.player.Music;
+
+/**
+ * Index of the finished tracks in the cache directory with their size, when they were last
+ * used and whether they are pinned.  The size of the cache is kept as a running total, so
+ * checking for space and finding the least recently used track never walk the directory.
+ * The index is built from the directory the first time it is created.
+ */
+class CacheIndex
+{
+    private static final String DB_NAME    = "track_cache.dat";
+    private static final int    DB_VERSION = 2;
+
+    static final String TABLE       = "track_cache";
+    static final String NAME        = "name";
+    static final String FILE_KEY    = "file_key";
+    static final String BITRATE     = "bitrate";
+    static final String SIZE        = "size";
+    static final String LAST_ACCESS = "last_access";
+    static final String PINNED      = "pinned";
+    
+    //The file keys that are pinned, whether or not they are cached yet
+    static final String PIN_TABLE   = "pin";
+
+    private static final String CREATE_TABLE = "CREATE TABLE " + TABLE + "(" +
+                                                    NAME        + " VARCHAR PRIMARY KEY," +
+                                                    FILE_KEY    + " VARCHAR," +
+                                                    BITRATE     + " INTEGER," +
+                                                    SIZE        + " INTEGER," +
+                                                    LAST_ACCESS + " INTEGER," +
+                                                    PINNED      + " INTEGER DEFAULT 0" +
+                                               ")";
+    private static final String CREATE_PIN_TABLE = "CREATE TABLE " + PIN_TABLE + "(" +
+                                                        FILE_KEY + " VARCHAR PRIMARY KEY" +
+                                                   ")";
+    private static final String[] CREATE_INDEXES = {
+        "CREATE INDEX " + TABLE + "_lru ON "      + TABLE + "(" + PINNED + ", " + LAST_ACCESS + ")",
+        "CREATE INDEX " + TABLE + "_file_key ON " + TABLE + "(" + FILE_KEY + ", " + BITRATE + ")"
+    };
+
+    private static CacheIndex sIndex;
+
+    private SQLiteDatabase  mDb;
+    private File            mDir;
+    private long            mSize;
+    private long            mPinnedSize;
+    private SQLiteStatement mInsert;
+    private SQLiteStatement mTouch;
+    private SQLiteStatement mDelete;
+    private SQLiteStatement mSizeOf;
+
+    static synchronized CacheIndex getInstance(Context context)
+    {
+        if (sIndex == null) sIndex = new CacheIndex(context.getApplicationContext());
+        return sIndex;
+    }
+
+    private CacheIndex(Context context)
+    {
+        mDir = new File(Music.getMP3tunesCacheDir());
+        Helper helper = new Helper(context);
+        mDb  = helper.getWritableDatabase();
+
+        mInsert = mDb.compileStatement("INSERT OR REPLACE INTO " + TABLE +
+                                       "(" + NAME + ", " + FILE_KEY + ", " + BITRATE + ", " + SIZE + ", " + LAST_ACCESS + ", " + PINNED + ") " +
+                                       "VALUES (?1, ?2, ?3, ?4, ?5, EXISTS (SELECT 1 FROM " + PIN_TABLE + " WHERE " + FILE_KEY + "=?2))");
+        mTouch  = mDb.compileStatement("UPDATE " + TABLE + " SET " + LAST_ACCESS + "=? WHERE " + NAME + "=?");
+        mDelete = mDb.compileStatement("DELETE FROM " + TABLE + " WHERE " + NAME + "=?");
+        mSizeOf = mDb.compileStatement("SELECT " + SIZE + " FROM " + TABLE + " WHERE " + NAME + "=?");
+
+        if (helper.mCreated) rescan();
+        mSize       = loadSize(false);
+        mPinnedSize = loadSize(true);
+    }
+
+    private class Helper extends SQLiteOpenHelper
+    {
+        boolean mCreated = false;
+
+        Helper(Context context)
+        {
+            super(context, DB_NAME, null, DB_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db)
+        {
+            db.execSQL(CREATE_TABLE);
+            db.execSQL(CREATE_PIN_TABLE);
+            for (String index : CREATE_INDEXES) {
+                db.execSQL(index);
+            }
+            mCreated = true;
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
+        {
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + PIN_TABLE);
+            onCreate(db);
+        }
+    }
+
+    //Cached tracks are named <file key>_<bitrate>.<format>
+    static int bitrateOf(String name)
+    {
+        int dot        = name.lastIndexOf('.');
+        int underscore = name.lastIndexOf('_', dot);
+        if (dot < 0 || underscore < 0) return -1;
+        try {
+            return Integer.parseInt(name.substring(underscore + 1, dot));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String fileKeyOf(String name)
+    {
+        return name.substring(0, name.lastIndexOf('_', name.lastIndexOf('.')));
+    }
+
+    private static boolean isTrack(String name)
+    {
+        if (name.endsWith(DownloadJournal.PARTIAL) || name.indexOf(DownloadJournal.EXTENSION) >= 0) return false;
+        return bitrateOf(name) >= 0;
+    }
+
+    private void rescan()
+    {
+        File[] files = mDir.listFiles();
+        if (files == null) return;
+        Logger.log("CacheIndex: indexing " + files.length + " files");
+        mDb.beginTransaction();
+        try {
+            for (File file : files) {
+                if (file.isFile() && isTrack(file.getName())) insert(file, file.lastModified());
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    private long loadSize(boolean pinned)
+    {
+        String where = pinned ? " WHERE " + PINNED + "=1" : "";
+        Cursor c = mDb.rawQuery("SELECT SUM(" + SIZE + ") FROM " + TABLE + where, null);
+        try {
+            if (c.moveToFirst()) return c.getLong(0);
+            return 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    private long sizeOf(String name)
+    {
+        mSizeOf.bindString(1, name);
+        try {
+            return mSizeOf.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return 0;
+        }
+    }
+    
+    private boolean isPinned(String name)
+    {
+        return DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM " + TABLE + " WHERE " + NAME + "=? AND " + PINNED + "=1",
+                                          new String[] {name}) > 0;
+    }
+
+    private void insert(File file, long time)
+    {
+        String name = file.getName();
+        mInsert.bindString(1, name);
+        mInsert.bindString(2, fileKeyOf(name));
+        mInsert.bindLong(3, bitrateOf(name));
+        mInsert.bindLong(4, file.length());
+        mInsert.bindLong(5, time);
+        mInsert.execute();
+    }
+
+    //Called when a download has been renamed to its final name
+    synchronized void add(File file)
+    {
+        String name = file.getName();
+        if (!isTrack(name)) return;
+        long old = sizeOf(name);
+        if (isPinned(name)) mPinnedSize -= old;
+        insert(file, System.currentTimeMillis());
+        mSize += file.length() - old;
+        if (isPinned(name)) mPinnedSize += file.length();
+    }
+
+    //Called when a cached track is used again
+    synchronized void touch(String path)
+    {
+        mTouch.bindLong(1, System.currentTimeMillis());
+        mTouch.bindString(2, new File(path).getName());
+        mTouch.execute();
+    }
+
+    synchronized void remove(String path)
+    {
+        String name = new File(path).getName();
+        long   size = sizeOf(name);
+        if (isPinned(name)) mPinnedSize -= size;
+        mSize -= size;
+        mDelete.bindString(1, name);
+        mDelete.execute();
+    }
+
+    //The bytes taken by the tracks in the index
+    synchronized long getSize()
+    {
+        return mSize;
+    }
+
+    //A bitrate of 0 is the original file, which is better than any transcoded rate
+    private static final String RANK = "(CASE " + BITRATE + " WHEN 0 THEN " + Integer.MAX_VALUE + " ELSE " + BITRATE + " END)";
+    
+    private static long rank(int bitrate)
+    {
+        if (bitrate == 0) return Integer.MAX_VALUE;
+        return bitrate;
+    }
+    
+    //The path of the best cached copy of a track in the format, at the bitrate or better if
+    //atLeast is set and worse otherwise, or null if we do not have one
+    synchronized String find(String fileKey, String format, int bitrate, boolean atLeast)
+    {
+        String compare = atLeast ? ">=" : "<";
+        Cursor c = mDb.rawQuery("SELECT " + NAME + " FROM " + TABLE + 
+                                " WHERE " + FILE_KEY + "=? AND " + NAME + " LIKE ? AND " + RANK + compare + "?" +
+                                " ORDER BY " + RANK + " DESC LIMIT 1", 
+                                new String[] {fileKey, "%." + format, Long.toString(rank(bitrate))});
+        File file;
+        try {
+            if (!c.moveToFirst()) return null;
+            file = new File(mDir, c.getString(0));
+        } finally {
+            c.close();
+        }
+        if (file.exists()) return file.getAbsolutePath();
+        
+        //Someone deleted it behind our back
+        remove(file.getPath());
+        return find(fileKey, format, bitrate, atLeast);
+    }
+    
+    //The bytes taken by pinned tracks, these are never evicted
+    synchronized long getPinnedSize()
+    {
+        return mPinnedSize;
+    }
+    
+    //Replaces the set of pinned file keys
+    synchronized void setPinned(Collection<String> fileKeys)
+    {
+        mDb.beginTransaction();
+        try {
+            mDb.delete(PIN_TABLE, null, null);
+            SQLiteStatement insert = mDb.compileStatement("INSERT OR IGNORE INTO " + PIN_TABLE + "(" + FILE_KEY + ") VALUES (?)");
+            try {
+                for (String key : fileKeys) {
+                    insert.bindString(1, key);
+                    insert.execute();
+                }
+            } finally {
+                insert.close();
+            }
+            mDb.execSQL("UPDATE " + TABLE + " SET " + PINNED + "=" + FILE_KEY + " IN (SELECT " + FILE_KEY + " FROM " + PIN_TABLE + ")");
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        mPinnedSize = loadSize(true);
+    }
+    
+    //Deletes the least recently used track that is not pinned, returns false if there is none
+    synchronized boolean evictLeastRecentlyUsed()
+    {
+        String name = null;
+        Cursor c = mDb.rawQuery("SELECT " + NAME + " FROM " + TABLE + " WHERE " + PINNED + "=0 " +
+                                "ORDER BY " + LAST_ACCESS + " LIMIT 1", null);
+        try {
+            if (c.moveToFirst()) name = c.getString(0);
+        } finally {
+            c.close();
+        }
+        if (name == null) return false;
+
+        File file = new File(mDir, name);
+        Logger.log("CacheIndex: evicting: " + file.getAbsolutePath());
+        if (file.exists() && !file.delete())
+            Logger.log("CacheIndex: failed to delete: " + file.getAbsolutePath());
+        remove(file.getPath());
+        return true;
+    }
+}
@@ -3,7 +3,6 @@ package com.mp3tunes.android.player.service;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.IOException;
 
 import com.binaryelysium.mp3tunes.api.HttpClientCaller;
 import com.binaryelysium.mp3tunes.api.Id;
@@ -11,7 +10,6 @@ import com.binaryelysium.mp3tunes.api.InvalidSessionException;
 import com.binaryelysium.mp3tunes.api.LockerId;
 import com.binaryelysium.mp3tunes.api.RemoteMethod;
 import com.binaryelysium.mp3tunes.api.Track;
-import com.binaryelysium.util.FileUtils;
 import com.mp3tunes.android.player.LocalId;
 import com.mp3tunes.android.player.Music;
 
@@ -27,6 +25,14 @@ public class CachedTrack implements Track
     Progress mProgress;
     String   mError;
     
+    //The parts of the file that have been downloaded.  Segments of a download are written in
+    //place, so only the bytes up to getReadableLength() can be read from the file.
+    ByteRangeMap mRanges = new ByteRangeMap();
+    
+    //Notified whenever bytes land in the file or the status changes, so that readers of a
+    //file that is still downloading can wait for more of it instead of polling
+    private final Object mAvailable = new Object();
+    
     public CachedTrack(Track t, String format, int bitrate) throws AlreadyDownloadedException
     {
         mTrack      = t;
@@ -34,15 +40,39 @@ public class CachedTrack implements Track
         mBitrate    = bitrate;
         mProgress   = new Progress();
         mError      = "no error";
-        try {
-            setCachePath();
-            setUrlFromCachePath();
-        } catch (IOException e) {
-            mError      = "Failed to create cached track";
-            mStatus     = Status.failed;
-        }
+        setCachePath();
+        setUrlFromCachePath();
+    }
+    
+    //Uses a finished file from the cache, which can be at another bitrate than was asked for
+    public CachedTrack(Track t, String format, String path)
+    {
+        mTrack      = t;
+        mFormat     = format;
+        mBitrate    = CacheIndex.bitrateOf(new File(path).getName());
+        mProgress   = new Progress();
+        mError      = "no error";
+        mCachedPath = path;
+        setStatus(Status.finished);
+        setUrlFromCachePath();
     }
     
+    //Picks up a partial download left in the cache by an earlier run
+    public CachedTrack(Track t, String format, int bitrate, String tmpPath, ByteRangeMap ranges, long length)
+    {
+        mTrack      = t;
+        mFormat     = format;
+        mBitrate    = bitrate;
+        mProgress   = new Progress();
+        mError      = "no error";
+        mCachedPath = tmpPath;
+        mStatus     = Status.created;
+        mRanges     = ranges;
+        setUrlFromCachePath();
+        setContentLength(length);
+        mProgress.run(mRanges.contiguousFrom(0), length);
+    }
+
     public CachedTrack(LocalId id, Track t)
     {
         mTrack      = t;
@@ -61,7 +91,8 @@ public class CachedTrack implements Track
         mCachedUrl = HttpServer.pathToUrl(mCachedPath);
     }
     
-    private String encode(String text)
+    //How a file key appears in the name of its cached file
+    static String encode(String text)
     {
         text = text.replace("/", "_slash_");
         text = text.replace(".", "_dot_");
@@ -80,7 +111,9 @@ public class CachedTrack implements Track
         return file;
     }
     
-    private void setCachePath() throws IOException, AlreadyDownloadedException
+    //The .tmp file of a new download is not created here.  The downloader creates it when a
+    //worker starts on the download, so queued downloads do not hold files open.
+    private void setCachePath() throws AlreadyDownloadedException
     {
         String dir  = Music.getMP3tunesCacheDir();
         File   file = createFile(dir, false);
@@ -92,13 +125,9 @@ public class CachedTrack implements Track
         }
         
         file = createFile(dir, true);
-        if (file.createNewFile()) {
-            mCachedPath = file.getAbsolutePath();
-            setStatus(Status.created);
-            return; 
-        }
-        
-        throw new AlreadyDownloadedException(file.getAbsolutePath());
+        if (file.exists()) throw new AlreadyDownloadedException(file.getAbsolutePath());
+        mCachedPath = file.getAbsolutePath();
+        setStatus(Status.created);
     }
     
     public int getAlbumId()
@@ -181,11 +210,15 @@ public class CachedTrack implements Track
         return mCachedPath;
     }
     
-    synchronized public void setStatus(int status)
+    public void setStatus(int status)
     {
-        mStatus = status;
-        if (mStatus == Status.finished)
-            mProgress.mProgress = 100;
+        synchronized (this) {
+            mStatus = status;
+            if (mStatus == Status.finished)
+                mProgress.mProgress = 100;
+        }
+        //Outside of our own lock, waitForBytes() takes them the other way round
+        signal();
     }
     
     synchronized public int getStatus()
@@ -193,20 +226,21 @@ public class CachedTrack implements Track
         return mStatus;
     }
     
+    //A finished download is renamed from its .tmp name in place.  The rename is atomic, so the
+    //cache only ever holds a complete file under its final name, and readers that already have
+    //the .tmp file open keep reading the same data.
     synchronized public boolean cacheTrack()
     {
         if (mStatus == CachedTrack.Status.finished ) {
             if (mCachedPath.contains("BYO_")) return false;
             if (mCachedPath.endsWith(".tmp")) {
-                String newFile = mCachedPath.replaceAll(".tmp", "." + mFormat);
-                try {
-                    FileUtils.copyFile(mCachedPath, newFile);
+                String newFile = mCachedPath.substring(0, mCachedPath.length() - ".tmp".length()) + "." + mFormat;
+                if (new File(mCachedPath).renameTo(new File(newFile))) {
                     mCachedPath = newFile;
                     setUrlFromCachePath();
                     return true;
-                } catch (IOException e) {
-                    Logger.log(e);
                 }
+                Logger.log("Failed to rename: " + mCachedPath + " to: " + newFile);
             } else {
                 return true;
             }
@@ -214,21 +248,6 @@ public class CachedTrack implements Track
         return false;
     }
     
-    //For now the caller is responsible for making sure that nothing else is reading the file
-    synchronized public boolean deleteTmpCopy()
-    {
-        String fileName = mCachedPath;
-        if (!mCachedPath.endsWith(".tmp"))
-            fileName = mCachedPath.replace("." + mFormat, ".tmp");
-        else
-            mStatus = Status.failed;
-        File file = new File(fileName);
-        if (file.exists()) {
-            return file.delete();
-        }
-        return true;
-    }
-    
     public static final class Status
     {
         public static final int created     = 0;
@@ -246,6 +265,7 @@ public class CachedTrack implements Track
         public void run(long progress, long total)
         {
             mTotal = total;
+            if (total <= 0) return;
             int p = (int)((progress * 100) / total);
             if (mProgress == p) return;
             mProgress = p;
@@ -259,6 +279,78 @@ public class CachedTrack implements Track
     {
         return mProgress.mProgress;
     }
+    
+    public void setContentLength(long length)
+    {
+        mProgress.mTotal = length;
+        signal();
+    }
+    
+    //Called by the downloader as bytes land in the file
+    public void written(long start, long end)
+    {
+        mRanges.add(start, end);
+        mProgress.run(mRanges.contiguousFrom(0), mProgress.mTotal);
+        signal();
+    }
+    
+    private void signal()
+    {
+        synchronized (mAvailable) {
+            mAvailable.notifyAll();
+        }
+    }
+    
+    //Blocks until the byte at offset can be read, the download finishes or fails, or timeout
+    //milliseconds pass
+    public void waitForBytes(long offset, long timeout) throws InterruptedException
+    {
+        long end = System.currentTimeMillis() + timeout;
+        synchronized (mAvailable) {
+            while (getReadableLength(offset) <= offset) {
+                int status = getStatus();
+                if (status == Status.finished || status == Status.failed) return;
+                long left = end - System.currentTimeMillis();
+                if (left <= 0) return;
+                mAvailable.wait(left);
+            }
+        }
+    }
+    
+    //Blocks until the download has begun and we know how long the track is, the download
+    //finishes or fails, or timeout milliseconds pass.  Returns the content length, which is
+    //still 0 if we gave up waiting.
+    public long waitForContentLength(long timeout) throws InterruptedException
+    {
+        long end = System.currentTimeMillis() + timeout;
+        synchronized (mAvailable) {
+            while (getContentLength() == 0) {
+                int status = getStatus();
+                if (status == Status.finished || status == Status.failed) break;
+                long left = end - System.currentTimeMillis();
+                if (left <= 0) break;
+                mAvailable.wait(left);
+            }
+        }
+        return getContentLength();
+    }
+    
+    //Everything before this offset is in the file and can be streamed
+    public long getReadableLength()
+    {
+        return getReadableLength(0);
+    }
+    
+    //The end of the run of bytes in the file that starts at offset.  A seek can land in a part
+    //of the file that was fetched out of order, so this is not always the start of the file.
+    public long getReadableLength(long offset)
+    {
+        if (getStatus() == Status.finished) {
+            String path = getPath();
+            if (path != null) return new File(path).length();
+        }
+        return mRanges.contiguousFrom(offset);
+    }
 
     public long getContentLength()
     {
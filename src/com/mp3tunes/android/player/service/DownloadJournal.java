@@ -0,0 +1,107 @@
+package com.mp3tunes.android.player.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * Remembers which parts of a partly downloaded file are on disk, along with the length and ETag
+ * the server gave us for it, so that the download can carry on from there after a dropped
+ * connection, a cancel or a restart of the process.  The journal is kept next to the file it
+ * describes as <file>.journal.
+ */
+class DownloadJournal
+{
+    static final String EXTENSION = ".journal";
+    static final String PARTIAL   = ".tmp";
+    
+    private static final String LENGTH = "length";
+    private static final String ETAG   = "etag";
+    private static final String RANGES = "ranges";
+    private static final String NEW    = ".new";
+    
+    private File mFile;
+    long         mLength;
+    String       mETag;
+    
+    DownloadJournal(String path)
+    {
+        mFile   = new File(path + EXTENSION);
+        mLength = -1;
+        mETag   = null;
+    }
+    
+    //Fills in ranges from the journal, returns false if there is no usable journal
+    synchronized boolean load(ByteRangeMap ranges)
+    {
+        if (!mFile.exists()) return false;
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(mFile);
+            Properties props = new Properties();
+            props.load(in);
+            mLength = Long.parseLong(props.getProperty(LENGTH, "-1"));
+            mETag   = props.getProperty(ETAG);
+            if (mLength <= 0) return false;
+            ranges.decode(props.getProperty(RANGES));
+            return true;
+        } catch (IOException e) {
+            Logger.log(e);
+        } catch (NumberFormatException e) {
+            Logger.log(e);
+        } finally {
+            try {
+                if (in != null) in.close();
+            } catch (IOException e) {}
+        }
+        ranges.clear();
+        return false;
+    }
+    
+    //The new journal is written beside the old one and renamed over it, so a crash leaves
+    //either the old journal or the new one and never half of one
+    synchronized void save(ByteRangeMap ranges, long length, String etag) throws IOException
+    {
+        Properties props = new Properties();
+        props.setProperty(LENGTH, Long.toString(length));
+        if (etag != null) props.setProperty(ETAG, etag);
+        props.setProperty(RANGES, ranges.encode());
+        
+        File tmp = new File(mFile.getPath() + NEW);
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            props.store(out, null);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(mFile))
+            throw new IOException("Failed to rename " + tmp.getPath());
+        mLength = length;
+        mETag   = etag;
+    }
+    
+    //Partial downloads left in the cache when we start up are only worth keeping if they
+    //have a journal to resume them from, and journals are only worth keeping with their file
+    static boolean isStale(File file)
+    {
+        String path = file.getPath();
+        if (path.endsWith(PARTIAL))
+            return !new File(path + EXTENSION).exists();
+        if (path.endsWith(EXTENSION))
+            return !new File(path.substring(0, path.length() - EXTENSION.length())).exists();
+        if (path.endsWith(EXTENSION + NEW))
+            return true;
+        return false;
+    }
+    
+    synchronized void delete()
+    {
+        if (mFile.exists() && !mFile.delete())
+            Logger.log("Failed to delete: " + mFile.getPath());
+        mLength = -1;
+        mETag   = null;
+    }
+}
@@ -1,9 +1,7 @@
 package com.mp3tunes.android.player.service;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Enumeration;
@@ -12,7 +10,6 @@ import java.util.Properties;
 import com.binaryelysium.mp3tunes.api.Track;
 import com.binaryelysium.mp3tunes.api.HttpClientCaller;
 import com.mp3tunes.android.player.Music;
-import com.mp3tunes.android.player.R;
 import com.mp3tunes.android.player.service.NanoHTTPD.Response;
 
 public class HttpServer
@@ -124,6 +121,21 @@ public class HttpServer
                 return new Response(NanoHTTPD.HTTP_FORBIDDEN, NanoHTTPD.MIME_PLAINTEXT, "FORBIDDEN: Won't serve ../ for security reasons.");
 
             File f = new File( homeDir, uri );
+            
+            //A download is renamed when it finishes, a player that started on the .tmp url
+            //follows it to the finished file
+            CachedTrack track = mQueue.getTrackByFileKey(fileKey);
+            if (!f.exists() && track != null && track.getPath() != null)
+                f = new File(track.getPath());
+            //A queued download has no file until a worker starts on it
+            if (!f.exists() && track != null && track.getStatus() != CachedTrack.Status.failed) {
+                try {
+                    track.waitForContentLength(TrackInputStream.STALL_TIMEOUT);
+                } catch (InterruptedException e) {
+                    return new Response(NanoHTTPD.HTTP_INTERNALERROR, NanoHTTPD.MIME_PLAINTEXT, "INTERNAL ERRROR: serveFile(): Interrupted.");
+                }
+                if (track.getPath() != null) f = new File(track.getPath());
+            }
             if ( !f.exists()) {
                 Logger.log("HttpServer: " +  "No file at: " + f.getAbsolutePath());
                 return new Response(NanoHTTPD.HTTP_NOTFOUND, NanoHTTPD.MIME_PLAINTEXT, "Error 404, file not found.");
@@ -146,75 +158,63 @@ public class HttpServer
             
                 Logger.log(f.getCanonicalPath() + " Mime: " + mime);
 
-                // Support (simple) skipping:
-                long startFrom = 0;
-                long end = 0;
-                String range = header.getProperty( "range" );
-                if ( range != null ) {
-                    String from = "";
-                    String to   = "";
-                    if ( range.startsWith( "bytes=" )) {
-                        range = range.substring( "bytes=".length());
-                        int minus = range.indexOf( '-' );
-                        if ( minus > 0 ) {
-                            from = range.substring( 0, minus );
-                            to   = range.substring(minus + 1);
-                        }
-                        try {
-                            startFrom = Long.parseLong(from);
-                        } catch ( NumberFormatException nfe ) {
-                            Logger.log("HttpServer: " +  "Range parse error");
-                        }
-                        try {
-                            end = Long.parseLong(to);
-                        } catch ( NumberFormatException nfe ) {
-                            Logger.log("HttpServer: " +  "Range parse error");
-                        }
-                    }
+                if (track == null) 
+                    return new Response(NanoHTTPD.HTTP_INTERNALERROR, NanoHTTPD.MIME_PLAINTEXT, "INTERNAL ERRROR: serveFile(): No current playback track.");
+                
+                int status = track.getStatus();
+                if (status == CachedTrack.Status.failed) {
+                    return new Response("408 Request Timeout", NanoHTTPD.MIME_PLAINTEXT, "Download failed");
                 }
-
-                CachedTrack track = mQueue.getTrackByFileKey(fileKey);
-                long length = 0;
-                    if (track == null) 
-                        return new Response(NanoHTTPD.HTTP_INTERNALERROR, NanoHTTPD.MIME_PLAINTEXT, "INTERNAL ERRROR: serveFile(): No current playback track.");
-                    
-                    int status = track.getStatus();
-                    if (status == CachedTrack.Status.failed) {
-                        return new Response("408 Request Timeout", NanoHTTPD.MIME_PLAINTEXT, "Download failed");
-                    }
-                    
-                    if (status == CachedTrack.Status.finished) {
-                        length = f.length();
-                    } else {
-                        length = track.getContentLength();
+                
+                //We learn the length of a download from its first response
+                if (status != CachedTrack.Status.finished && track.getContentLength() <= 0) {
+                    try {
+                        track.waitForBytes(0, TrackInputStream.STALL_TIMEOUT);
+                    } catch (InterruptedException e) {
+                        return new Response(NanoHTTPD.HTTP_INTERNALERROR, NanoHTTPD.MIME_PLAINTEXT, "INTERNAL ERRROR: serveFile(): Interrupted.");
                     }
-
+                    status = track.getStatus();
+                }
+                
+                long length;
+                if (status == CachedTrack.Status.finished) {
+                    length = f.length();
+                } else {
+                    length = track.getContentLength();
+                }
+                Logger.log("HttpServer: " +  "File length: " + Long.toString(length));
                 
+                //Without a length all we can do is send whatever the download gives us
+                if (length <= 0) {
+                    return new Response(NanoHTTPD.HTTP_OK, mime, new TrackInputStream(f, track, 0, Long.MAX_VALUE), track);
+                }
                 
-                //The Http client in opencore does not behave itself.  It does not adjust its expected content size in
-                //response to 416 errors nor does it adjust the amount of data it expects in response to a returned
-                //Content-range header.  Since the server does not know the exact size of files that need
-                //to be transcoded it often returns a content length that is slightly too long.  When this happens
-                //opencore will wait forever for data that will never come.  I have been unable to come up with a
-                //solution that is not fragile other than what is below.  We have included an MP3 that contains silence
-                //and set the server up to return data from it until opencore has the ammount of data that it expects.
-                Logger.log("HttpServer: " +  "File length: " + Long.toString(length) + " Start from: " + Long.toString(startFrom));
-                InputStream fis = null;  
-                if (startFrom >= length) {
-                    if (startFrom > end) {
-                        return new Response(NanoHTTPD.HTTP_RANGE_ERROR, NanoHTTPD.MIME_PLAINTEXT, "Start of range greater than end of range");
-                    }
-                    length = end;
-                    fis = mQueue.mContext.get().getResources().openRawResource(R.raw.silent);
-                    fis.skip(100);
-                } else {                
-                    fis = new FileInputStream(f);
-                    fis.skip( startFrom );
+                long[] range = parseRange(header.getProperty("range"), length);
+                if (range == null) {
+                    Response r = new Response(NanoHTTPD.HTTP_OK, mime, new TrackInputStream(f, track, 0, length), track);
+                    r.addHeader("Content-Length", Long.toString(length));
+                    r.addHeader("Accept-Ranges", "bytes");
+                    return r;
                 }
-                Response r = new Response(NanoHTTPD.HTTP_OK, mime, fis, track);
-                r.addHeader("Content-length",  Long.toString(length/* - startFrom*/));
-                r.addHeader("Content-range", Long.toString(startFrom) + "-" + Long.toString(length) + "/" + Long.toString(length));
-            
+                
+                long first = range[0];
+                long last  = range[1];
+                if (first >= length || first > last) {
+                    Response r = new Response(NanoHTTPD.HTTP_RANGE_ERROR, NanoHTTPD.MIME_PLAINTEXT, "Requested range not satisfiable");
+                    r.addHeader("Content-Range", "bytes */" + Long.toString(length));
+                    return r;
+                }
+                
+                //A seek past what we have downloaded should not wait for the download to get there.
+                //Only the playing track jumps the queue, a player prepared for the next track
+                //must not take connections away from it.
+                if (track.getReadableLength(first) <= first && isPlaying(track)) 
+                    mQueue.mDownloader.fetchRange(track, first);
+                
+                Response r = new Response(NanoHTTPD.HTTP_PARTIAL_CONTENT, mime, new TrackInputStream(f, track, first, last + 1), track);
+                r.addHeader("Content-Length", Long.toString(last - first + 1));
+                r.addHeader("Content-Range", "bytes " + Long.toString(first) + "-" + Long.toString(last) + "/" + Long.toString(length));
+                r.addHeader("Accept-Ranges", "bytes");
                 return r;
             } catch( IOException ioe ) {
                 Logger.log("HttpServer: " +  "Server got IOException trying to read file");
@@ -223,6 +223,47 @@ public class HttpServer
         }
     }
     
+    private boolean isPlaying(CachedTrack track)
+    {
+        try {
+            return track == mQueue.getPlaybackTrack();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return false;
+        }
+    }
+    
+    //Parses "bytes=a-b", "bytes=a-" and the suffix form "bytes=-n" into the first and last byte
+    //wanted.  Only the first of several ranges is served.  Returns null when there is no range we
+    //understand, in which case the whole file is sent.
+    static long[] parseRange(String range, long length)
+    {
+        if (range == null || !range.startsWith("bytes=")) return null;
+        range = range.substring("bytes=".length());
+        int comma = range.indexOf(',');
+        if (comma >= 0) range = range.substring(0, comma);
+        int minus = range.indexOf('-');
+        if (minus < 0) return null;
+        String from = range.substring(0, minus).trim();
+        String to   = range.substring(minus + 1).trim();
+        try {
+            if (from.length() == 0) {
+                long suffix = Long.parseLong(to);
+                return new long[] {Math.max(0, length - suffix), length - 1};
+            }
+            long first = Long.parseLong(from);
+            long last  = length - 1;
+            if (to.length() > 0) {
+                last = Long.parseLong(to);
+                if (last < first) return null;
+                last = Math.min(last, length - 1);
+            }
+            return new long[] {first, last};
+        } catch (NumberFormatException e) {
+            Logger.log("HttpServer: " +  "Range parse error: " + range);
+            return null;
+        }
+    }
+    
     public static String pathToUrl(String path)
     {
         try {
@@ -2,7 +2,16 @@ package com.mp3tunes.android.player.service;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * A simple, tiny, nicely embeddable HTTP 1.0 server in Java
@@ -143,6 +152,7 @@ public class NanoHTTPD
      */
     public static final String
         HTTP_OK             = "200 OK",
+        HTTP_PARTIAL_CONTENT = "206 Partial Content",
         HTTP_REDIRECT       = "301 Moved Permanently",
         HTTP_FORBIDDEN      = "403 Forbidden",
         HTTP_NOTFOUND       = "404 Not Found",
@@ -171,12 +181,23 @@ public class NanoHTTPD
     {
         myTcpPort = port;
         runThread = true;
-        final ServerSocket ss = new ServerSocket( myTcpPort );
-        //ss.setSoTimeout(1000);
+        //Accepted through a channel so that sessions can hand files to the socket with
+        //FileChannel.transferTo() instead of copying them through a buffer
+        myServerChannel = ServerSocketChannel.open();
+        myServerChannel.socket().bind( new InetSocketAddress( myTcpPort ));
+        mySessions = new ThreadPoolExecutor( MIN_SESSIONS, MAX_SESSIONS, 30, TimeUnit.SECONDS,
+                                             new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            private int mCount = 0;
+            public synchronized Thread newThread( Runnable r ) {
+                Thread t = new Thread( r, "NanoHTTPD-" + ++mCount );
+                t.setDaemon( true );
+                return t;
+            }
+        });
         Thread t = new Thread( new Runnable() {
             public void run() {
                 try {
-                    while( runThread ) new HTTPSession( ss.accept());
+                    while( runThread ) new HTTPSession( myServerChannel.accept().socket());
                 } catch ( IOException ioe ) {}
             }
         });
@@ -184,10 +205,24 @@ public class NanoHTTPD
         t.start();
     }
 
-    private boolean runThread;
+    //The player keeps a connection open for each track it streams and probes and seeks with
+    //short lived ones.  A stream can block for a while waiting on its download, so a request
+    //never queues behind them: it gets a thread of its own, up to MAX_SESSIONS at once, and
+    //threads beyond MIN_SESSIONS go away when they are idle.
+    private static final int MIN_SESSIONS = 4;
+    private static final int MAX_SESSIONS = 16;
+
+    private volatile boolean    runThread;
+    private ServerSocketChannel myServerChannel;
+    private ExecutorService     mySessions;
+    
     public void stop() 
     {
         this.runThread = false;
+        try {
+            myServerChannel.close();
+        } catch ( IOException ioe ) {}
+        mySessions.shutdownNow();
     }
 
     /**
@@ -207,9 +242,12 @@ public class NanoHTTPD
                 localhost = null;
             }
             if (s.getInetAddress().equals(localhost)) {
-                Thread t = new Thread( this );
-                t.setDaemon( true );
-                t.start();
+                try {
+                    mySessions.execute( this );
+                } catch ( RejectedExecutionException ree ) {
+                    // The server has been stopped
+                    try { s.close(); } catch( Throwable thr ) {}
+                }
             } else {
                 try {
                     sendError( HTTP_INTERNALERROR, "SERVER INTERNAL ERROR: Invalid ip.");
@@ -288,7 +326,7 @@ public class NanoHTTPD
                 if ( r == null )
                     sendError( HTTP_INTERNALERROR, "SERVER INTERNAL ERROR: Serve() returned a null response." );
                 else
-                    sendResponse(r.status, r.mimeType, r.header, r.data, r.track);
+                    sendResponse(r.status, r.mimeType, r.header, r.data);
 
                 in.close();
             } catch ( IOException ioe ) {
@@ -357,14 +395,17 @@ public class NanoHTTPD
          */
         private void sendError( String status, String msg ) throws InterruptedException
         {
-            sendResponse( status, MIME_PLAINTEXT, null, new ByteArrayInputStream( msg.getBytes()), null);
+            sendResponse( status, MIME_PLAINTEXT, null, new ByteArrayInputStream( msg.getBytes()));
             throw new InterruptedException();
         }
 
         /**
-         * Sends given response to the socket.
+         * Sends given response to the socket.  A track that is still downloading is read through
+         * a TrackInputStream, which blocks until the downloader has written more of it, so this
+         * is a plain copy until the end of the stream.  Tracks are handed from their file
+         * straight to the socket, other data is copied through a buffer.
          */
-        private void sendResponse( String status, String mime, Properties header, InputStream data, CachedTrack t)
+        private void sendResponse( String status, String mime, Properties header, InputStream data)
         {
             try {
                 if ( status == null )
@@ -392,24 +433,17 @@ public class NanoHTTPD
                 pw.print("\r\n");
                 pw.flush();
                                     
-                if ( data != null ) {
+                if ( data instanceof TrackInputStream ) {
+                    ((TrackInputStream)data).setClient( mySocket );
+                    WritableByteChannel channel = mySocket.getChannel();
+                    if ( channel == null )
+                        channel = Channels.newChannel( out );
+                    ((TrackInputStream)data).transferTo( channel );
+                } else if ( data != null ) {
                     byte[] buff = new byte[8192];
-                    int count = 0;
                     while (true) {
                         int read = data.read(buff, 0, 8192);
-                        if (read <= 0 && t == null) break;
-                        if (read <= 0 ) {
-                            if (t.getStatus() == CachedTrack.Status.finished) {
-                                //Logger.log("read: " + read + " bytes exiting with cache status finished");
-                                if (count > 100)
-                                    break;
-                                else
-                                    count++;
-                            } else if (t.getStatus() == CachedTrack.Status.failed) {
-                                Logger.log("read: " + read + " bytes exiting with cache status failed");
-                                break;
-                            }
-                        }
+                        if (read < 0) break;
                         if (read > 0) 
                             out.write( buff, 0, read );
                     }
@@ -0,0 +1,119 @@
+package com.mp3tunes.android.player.service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.app.Service;
+import android.database.Cursor;
+
+import com.binaryelysium.mp3tunes.api.LockerId;
+import com.binaryelysium.mp3tunes.api.Track;
+import com.mp3tunes.android.player.Music;
+import com.mp3tunes.android.player.content.LockerDb;
+
+/**
+ * Keeps the tracks of pinned playlists in the track cache.  Pins are kept in the locker
+ * database against the playlist, the cache index is told which file keys they cover so that
+ * eviction passes them by, and pinned tracks that are not cached yet are downloaded in the
+ * background at FORSTORAGE priority.
+ */
+class PinnedTracks
+{
+    private Service         mService;
+    private TrackDownloader mDownloader;
+    private CacheIndex      mIndex;
+    private ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    PinnedTracks(Service service, TrackDownloader downloader)
+    {
+        mService    = service;
+        mDownloader = downloader;
+        mIndex      = CacheIndex.getInstance(service);
+    }
+
+    void pinPlaylist(final String playlistId, final boolean pinned)
+    {
+        mExecutor.execute(new Runnable() {
+            public void run()
+            {
+                LockerDb db = Music.getDb(mService);
+                if (db == null) return;
+                db.setPlaylistPinned(playlistId, pinned);
+                doSync();
+            }
+        });
+    }
+
+    //Brings the cache up to date with the pins
+    void sync()
+    {
+        mExecutor.execute(new Runnable() {
+            public void run()
+            {
+                doSync();
+            }
+        });
+    }
+
+    long getPinnedSize()
+    {
+        return mIndex.getPinnedSize();
+    }
+
+    void shutdown()
+    {
+        mExecutor.shutdown();
+    }
+
+    private void doSync()
+    {
+        LockerDb db = Music.getDb(mService);
+        if (db == null) return;
+
+        //A pinned playlist may never have been browsed, so its tracks are fetched first
+        List<String> playlists = new ArrayList<String>();
+        Cursor c = db.getPinnedPlaylistIds();
+        try {
+            while (c.moveToNext()) {
+                playlists.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        for (String id : playlists) {
+            try {
+                db.refreshPlaylistTracks(id);
+            } catch (Exception e) {
+                //We can still keep what we already know of the playlist
+                Logger.log(e, "PinnedTracks: unable to fetch tracks of playlist: " + id);
+            }
+        }
+
+        List<Track> tracks = new ArrayList<Track>();
+        c = db.getPinnedTrackIds();
+        try {
+            while (c.moveToNext()) {
+                Track t = db.getTrack(new LockerId(c.getInt(0)));
+                if (t != null) tracks.add(t);
+            }
+        } finally {
+            c.close();
+        }
+
+        Set<String> keys = new HashSet<String>();
+        for (Track t : tracks) {
+            keys.add(CachedTrack.encode(t.getFileKey()));
+        }
+        mIndex.setPinned(keys);
+        Logger.log("PinnedTracks: " + tracks.size() + " pinned tracks using " + mIndex.getPinnedSize() + " bytes");
+
+        int bitrate = Bitrate.getBitrate(mService, mService);
+        for (Track t : tracks) {
+            mDownloader.downloadTrack(t, TrackDownloader.Priority.FORSTORAGE, "mp3", bitrate);
+        }
+    }
+}
@@ -29,8 +29,23 @@ public class PlaybackHandler
     
     private PrepareTask mPrepareTask;
     
+    //The player for the track after this one, prepared ahead of time so that the change of track
+    //only has to start it
+    private MediaPlayer mNextMp;
+    private CachedTrack mNextTrack;
+    private boolean     mNextPrepared;
+    
+    //A next track whose download has not begun waits for it here before it is prepared, so
+    //that its player does not hold a proxy session waiting on the download
+    private CachedTrack mPendingNext;
+    private Thread      mPendingWaiter;
+    private static final long NEXT_DOWNLOAD_TIMEOUT = 10 * 60 * 1000;
+    
     private long        mDuration;
     
+    //How long we wait for the download of a track to begin before giving up on it
+    private static final long DOWNLOAD_START_TIMEOUT = 60 * 1000;
+    
     private OnCompletionListener      mOnCompletionListener;
     private MyOnErrorListener         mOnErrorListener;
     private OnInfoListener            mOnInfoListener;
@@ -55,8 +70,15 @@ public class PlaybackHandler
         if (t.getStatus() == CachedTrack.Status.failed) return false;
         if (mMp != null && mPrepared) {
             mMp.release();
+            mMp       = null;
             mPrepared = false;
         }
+        if (mPrepareTask != null) mPrepareTask.cancel(true);
+        if (t == mNextTrack && mNextMp != null) {
+            handOver();
+            return true;
+        }
+        releaseNext();
         mTrack = t;
         mTimer = new Timer("Waiting to prepare");
         mPrepareTask = new PrepareTask();
@@ -82,6 +104,104 @@ public class PlaybackHandler
     synchronized public void stop()
     {
         if (mPrepared) mMp.stop();
+        releaseNext();
+    }
+    
+    //Prepares a player for the track that will be played after this one.  Local tracks and
+    //tracks in the cache are ready straight away.  The others are read through the proxy as
+    //their download carries on, once it has begun.
+    synchronized public void prepareNext(final CachedTrack t)
+    {
+        if (t == null || t == mNextTrack || t == mPendingNext) return;
+        releaseNext();
+        if (t.getStatus() == CachedTrack.Status.failed) return;
+        
+        String url = t.getCachedUrl();
+        boolean ready = t.getStatus() == CachedTrack.Status.finished || t.getContentLength() > 0;
+        if (LockerId.class.isInstance(t.getId()) && AddTrackToMediaStore.isInStore(t, mContext)) {
+            url   = AddTrackToMediaStore.getTrackUrl(t, mContext);
+            ready = true;
+        }
+        if (url == null) return;
+        
+        if (!ready) {
+            mPendingNext   = t;
+            mPendingWaiter = new Thread(new Runnable() {
+                public void run()
+                {
+                    try {
+                        t.waitForContentLength(NEXT_DOWNLOAD_TIMEOUT);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    synchronized (PlaybackHandler.this) {
+                        if (mPendingNext != t) return;
+                        mPendingNext   = null;
+                        mPendingWaiter = null;
+                        if (t.getContentLength() > 0 || t.getStatus() == CachedTrack.Status.finished)
+                            prepareNext(t);
+                    }
+                }
+            }, "PrepareNext");
+            mPendingWaiter.setDaemon(true);
+            mPendingWaiter.start();
+            return;
+        }
+        
+        Logger.log("preparing next track: " + t.getTitle());
+        MediaPlayer mp = new MediaPlayer();
+        mp.setAudioStreamType(AudioManager.STREAM_MUSIC);
+        mp.setOnPreparedListener(mOnPreparedListener);
+        mp.setOnErrorListener(mOnNextErrorListener);
+        try {
+            mp.setDataSource(url);
+            mp.prepareAsync();
+        } catch (Exception e) {
+            Logger.log(e);
+            mp.release();
+            return;
+        }
+        mNextMp       = mp;
+        mNextTrack    = t;
+        mNextPrepared = false;
+    }
+    
+    private void releaseNext()
+    {
+        if (mPendingWaiter != null) mPendingWaiter.interrupt();
+        mPendingWaiter = null;
+        mPendingNext   = null;
+        if (mNextMp != null) mNextMp.release();
+        mNextMp       = null;
+        mNextTrack    = null;
+        mNextPrepared = false;
+    }
+    
+    //Makes the next player the current one.  If it is prepared it starts now, otherwise it starts
+    //when it is.
+    private void handOver()
+    {
+        Logger.log("handing over to prepared player for: " + mNextTrack.getTitle());
+        if (mMp != null) mMp.release();
+        mMp       = mNextMp;
+        mTrack    = mNextTrack;
+        mPrepared = mNextPrepared;
+        mDuration = estimateDuration(mTrack);
+        mNextMp       = null;
+        mNextTrack    = null;
+        mNextPrepared = false;
+        
+        setListeners();
+        mMp.setVolume(1.0f, 1.0f);
+        if (mPrepared) mMp.start();
+    }
+    
+    //What we report as the duration of a track that is streaming until the player knows it
+    private static long estimateDuration(CachedTrack t)
+    {
+        long length = t.getContentLength();
+        if (length > 0 && t.mBitrate > 0) return length * 8000 / t.mBitrate;
+        return 0;
     }
     
     synchronized public boolean isPlaying() 
@@ -102,6 +222,7 @@ public class PlaybackHandler
             long duration = mMp.getDuration();
             if (duration > 0)
                 return duration;
+            if (mDuration <= 0) mDuration = estimateDuration(mTrack);
             if (mDuration <= 0) {
                Logger.log("FIXME: mMp.getDuration() and mDuration both less than 0 this should not happen"); 
             }
@@ -126,13 +247,15 @@ public class PlaybackHandler
     
     synchronized public void finish()
     {
+        if (mPrepareTask != null) {
+            mPrepareTask.cancel(true);
+            mPrepareTask = null;
+        }
         if (mPrepared) {
             mPrepared = false;
             if (mMp != null)
                 mMp.release();
             mMp = null;
-            if (mTrack != null)
-                mTrack.deleteTmpCopy();
         }
     }
     
@@ -200,16 +323,24 @@ public class PlaybackHandler
             return false;
         }
         
+        //The track wakes us when its download learns the content length, or fails.  A task
+        //that is cancelled because another track is played is interrupted out of the wait.
         boolean waitForDownloadToBegin()
         {
             Logger.log("Waiting on download to begin");
-            int index = 0;
-            while (mTrack.getContentLength() == 0) {
-                if (((index++ % 100000) == 0) && (mTrack.getStatus() == CachedTrack.Status.failed)) {
-                    return false;
-                }
+            long length;
+            try {
+                length = mTrack.waitForContentLength(DOWNLOAD_START_TIMEOUT);
+            } catch (InterruptedException e) {
+                Logger.log("Stopped waiting on download of: " + mTrack.getTitle());
+                return false;
             }
-            mDuration = mTrack.getContentLength() * 8000 / mTrack.mBitrate;
+            if (isCancelled() || mTrack.getStatus() == CachedTrack.Status.failed) return false;
+            if (length == 0) {
+                Logger.log("Download of: " + mTrack.getTitle() + " did not begin in " + DOWNLOAD_START_TIMEOUT + "ms");
+                return false;
+            }
+            mDuration = estimateDuration(mTrack);
             Logger.log("Duration set to: " + mDuration);
             return true;
         }
@@ -230,6 +361,7 @@ public class PlaybackHandler
         @Override
         protected void onPostExecute(Boolean ret)
         {
+            if (isCancelled()) return;
             if (!ret) {
                 mOnErrorListener.onTrackFailed(mMp, 0);
             }
@@ -251,6 +383,13 @@ public class PlaybackHandler
         public void onPrepared(MediaPlayer mp)
         {
             synchronized (PlaybackHandler.this) {
+                //The next track waits to be handed over
+                if (mp == mNextMp) {
+                    Logger.log("next track prepared: " + mNextTrack.getTitle());
+                    mNextPrepared = true;
+                    return;
+                }
+                if (mp != mMp) return;
                 if (mTimer != null) mTimer.push();
                 mTimer = null;
                 if (mMp != null) {
@@ -261,6 +400,18 @@ public class PlaybackHandler
         }
     }
     
+    //A next track that fails to prepare is dropped, it is played the usual way when its turn comes
+    private final OnErrorListener mOnNextErrorListener = new OnErrorListener() {
+        public boolean onError(MediaPlayer mp, int what, int extra)
+        {
+            synchronized (PlaybackHandler.this) {
+                Logger.log("next track failed to prepare: " + what + " " + extra);
+                if (mp == mNextMp) releaseNext();
+            }
+            return true;
+        }
+    };
+    
     private class MyOnBufferingUpdateListener implements MediaPlayer.OnBufferingUpdateListener
     {
 
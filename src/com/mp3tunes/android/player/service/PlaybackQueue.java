@@ -2,7 +2,7 @@ package com.mp3tunes.android.player.service;
 
 import java.io.File;
 import java.lang.ref.WeakReference;
-import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.app.Service;
 import android.content.Context;
@@ -15,137 +15,197 @@ import com.mp3tunes.android.player.util.Pair;
 
 class PlaybackQueue
 {
-    Vector<TrackData>      mQueue;
-    int                    mPlaybackPosition;
-    int                    mDownloadPosition;
     WeakReference<Context> mContext;
     WeakReference<Service> mService;
     TrackDownloader        mDownloader;
-    static final int       mForwardCacheSize  = 2;
-    static final int       mPreviousCacheSize = 1;
+    PrefetchPlanner        mPlanner;
+    
+    //The tracks we are fetching by their file key, both as it is and as it appears in the name
+    //of the cached file.  The proxy looks tracks up here on every request without taking the
+    //queue's lock.
+    ConcurrentHashMap<String, CachedTrack> mByFileKey = new ConcurrentHashMap<String, CachedTrack>();
+    
+    //The queue and the playback position as they stand.  A snapshot is never changed once it is
+    //published.  Every change builds a new one and swaps it in, so the binder calls from the UI
+    //read whichever snapshot is current and never wait on a change of track.
+    private static final class Snapshot
+    {
+        final TrackData[] mTracks;
+        final int         mPosition;
+        
+        Snapshot(TrackData[] tracks, int position)
+        {
+            mTracks   = tracks;
+            mPosition = position;
+        }
+    }
+    
+    private volatile Snapshot mSnapshot;
+    
+    //Changes are made one at a time.  Only changes take this lock, reads never do.
+    private final Object      mWriteLock = new Object();
     
     PlaybackQueue(Service service, Context context, TrackDownloader downloader)
     {
         mContext    = new WeakReference<Context>(context);
         mService    = new WeakReference<Service>(service);
         mDownloader = downloader;
+        mPlanner    = new PrefetchPlanner(service, downloader);
         setPlaybackQueue(null);
     }
     
-    synchronized public void addToPlaybackQueue(IdParcel[] tracks)
+    public void addToPlaybackQueue(IdParcel[] tracks)
     {
-        for (IdParcel parcel : tracks) {
-            mQueue.add(new TrackData(new LazyTrack(parcel.getId(), mContext.get())));
+        synchronized (mWriteLock) {
+            Snapshot    current = mSnapshot;
+            TrackData[] queue   = new TrackData[current.mTracks.length + tracks.length];
+            System.arraycopy(current.mTracks, 0, queue, 0, current.mTracks.length);
+            for (int i = 0; i < tracks.length; i++) {
+                queue[current.mTracks.length + i] = new TrackData(new LazyTrack(tracks[i].getId(), mContext.get()));
+            }
+            mSnapshot = new Snapshot(queue, current.mPosition);
         }
     }
     
-    synchronized public void setPlaybackQueue(IdParcel[] tracks)
+    public void setPlaybackQueue(IdParcel[] tracks)
     {
         if (tracks == null) tracks = new IdParcel[0];
-        mQueue = new Vector<TrackData>();
-        for (IdParcel parcel : tracks) {
-            mQueue.add(new TrackData(new LazyTrack(parcel.getId(), mContext.get())));
+        TrackData[] queue = new TrackData[tracks.length];
+        for (int i = 0; i < tracks.length; i++) {
+            queue[i] = new TrackData(new LazyTrack(tracks[i].getId(), mContext.get()));
+        }
+        synchronized (mWriteLock) {
+            mByFileKey.clear();
+            mSnapshot = new Snapshot(queue, 0);
         }
-        mPlaybackPosition = 0;
-        mDownloadPosition = 0;
     }
     
-    synchronized public CachedTrack getPlaybackTrack()
+    public CachedTrack getPlaybackTrack()
+    {
+        Snapshot current = mSnapshot;
+        return current.mTracks[current.mPosition].mCachedTrack;
+    }
+    
+    public Track peekNextPlaybackTrack()
     {
-        return mQueue.get(mPlaybackPosition).mCachedTrack;
+        Snapshot current = mSnapshot;
+        if (current.mTracks.length <= current.mPosition + 1) return null; 
+        return current.mTracks[current.mPosition + 1].mTrack;
     }
     
-    synchronized public Track peekNextPlaybackTrack()
+    //The next track as it is being fetched, or null if it is not being fetched yet
+    public CachedTrack peekNextCachedTrack()
     {
-        if (mQueue.size() <= mPlaybackPosition + 1) return null; 
-        return mQueue.get(mPlaybackPosition + 1).mTrack;
+        Snapshot current = mSnapshot;
+        if (current.mTracks.length <= current.mPosition + 1) return null; 
+        return current.mTracks[current.mPosition + 1].mCachedTrack;
     }
     
-    synchronized public CachedTrack nextPlaybackTrack()
+    public CachedTrack nextPlaybackTrack()
     {
-        mPlaybackPosition++;
-        if (mQueue.size() > mPlaybackPosition) {
-            mDownloader.setMaxPriority(TrackDownloader.Priority.SKIPPEDTRACK);
-            fetchTracks();
-            mDownloader.cancelOldDownload(mQueue.get(mPlaybackPosition).mCachedTrack);
+        synchronized (mWriteLock) {
+            Snapshot current = mSnapshot;
+            if (!moveTo(current.mTracks, current.mPosition + 1)) return null;
             return getPlaybackTrack();
         }
-        return null;
     }
     
-    synchronized public CachedTrack previousPlaybackTrack()
+    public CachedTrack previousPlaybackTrack()
     {
-        mPlaybackPosition--;
-        if (mPlaybackPosition < 0) mPlaybackPosition = 0;
-            mDownloader.setMaxPriority(TrackDownloader.Priority.SKIPPEDTRACK);
-            fetchTracks();
-            mDownloader.cancelOldDownload(mQueue.get(mPlaybackPosition).mCachedTrack);
+        synchronized (mWriteLock) {
+            Snapshot current = mSnapshot;
+            moveTo(current.mTracks, Math.max(current.mPosition - 1, 0));
             return getPlaybackTrack();
+        }
     }
     
-    synchronized public int getBufferPercent()
+    //Fetches the tracks around the new position and then publishes it, so that a reader never
+    //sees a position whose track is not being fetched yet.  Returns false if the position is
+    //past the end of the queue.  Called with the write lock held.
+    private boolean moveTo(TrackData[] queue, int pos)
     {
-        try {
-            TrackData t = mQueue.get(mPlaybackPosition);
-            if (t == null)              return 0;
-            if (t.mCachedTrack == null) return 0;
-            return t.mCachedTrack.getDownloadPercent();
-        } catch (ArrayIndexOutOfBoundsException e) {
-            return 0;
+        Snapshot next = new Snapshot(queue, pos);
+        if (pos >= queue.length) {
+            mSnapshot = next;
+            return false;
         }
+        mDownloader.setMaxPriority(TrackDownloader.Priority.SKIPPEDTRACK);
+        fetchTracks(next);
+        mSnapshot = next;
+        mDownloader.makeRoomFor(queue[pos].mCachedTrack);
+        return true;
+    }
+    
+    //The user moved on before the playing track finished
+    public void trackSkipped()
+    {
+        mPlanner.trackSkipped();
     }
     
-    synchronized public int getPlaybackPosition()
+    public void trackCompleted()
     {
-        return mPlaybackPosition;
+        mPlanner.trackCompleted();
     }
     
-    synchronized public boolean setPlaybackPosition(int pos)
+    public int getBufferPercent()
     {
-        if (pos < mQueue.size() && pos >= 0) {
-            mPlaybackPosition = pos;
-            mDownloader.setMaxPriority(TrackDownloader.Priority.SKIPPEDTRACK);
-            fetchTracks();
-            mDownloader.cancelOldDownload(mQueue.get(pos).mCachedTrack);
-            return true;
+        Snapshot current = mSnapshot;
+        if (current.mPosition >= current.mTracks.length) return 0;
+        CachedTrack t = current.mTracks[current.mPosition].mCachedTrack;
+        if (t == null) return 0;
+        return t.getDownloadPercent();
+    }
+    
+    public int getPlaybackPosition()
+    {
+        return mSnapshot.mPosition;
+    }
+    
+    public boolean setPlaybackPosition(int pos)
+    {
+        synchronized (mWriteLock) {
+            TrackData[] queue = mSnapshot.mTracks;
+            if (pos < queue.length && pos >= 0) return moveTo(queue, pos);
+            return false;
         }
-        return false;
     }
     
-    synchronized public CachedTrack getTrackByFileKey(String key)
+    public CachedTrack getTrackByFileKey(String key)
     {
-        for (TrackData data : mQueue) {
-            if (data.mCachedTrack != null) {
-                String fileKey = data.mCachedTrack.getFileKey();
-                if (fileKey.equals(key))
-                    return data.mCachedTrack;
-                
-                fileKey = fileKey.replace("/", "_slash_");
-                fileKey = fileKey.replace(".", "_dot_");
-                fileKey = fileKey.replace("%", "_percent_");
-                if (fileKey.equals(key))
-                    return data.mCachedTrack;
-            }
-        } 
-        return null;
+        return mByFileKey.get(key);
+    }
+    
+    private void setCachedTrack(TrackData t, CachedTrack track)
+    {
+        if (t.mCachedTrack != null && t.mCachedTrack.getFileKey() != null) {
+            String key = t.mCachedTrack.getFileKey();
+            mByFileKey.remove(key, t.mCachedTrack);
+            mByFileKey.remove(CachedTrack.encode(key), t.mCachedTrack);
+        }
+        t.mCachedTrack = track;
+        if (track != null && track.getFileKey() != null) {
+            String key = track.getFileKey();
+            mByFileKey.put(key, track);
+            mByFileKey.put(CachedTrack.encode(key), track);
+        }
     }
        
-    private void fetchTracks()
+    private void fetchTracks(Snapshot current)
     {
-        fetchTrack(mQueue.get(mPlaybackPosition), TrackDownloader.Priority.NOWPLAYING);
+        TrackData[] queue = current.mTracks;
+        int         pos   = current.mPosition;
+        fetchTrack(queue[pos], TrackDownloader.Priority.NOWPLAYING);
         
-        try {
-            for (int i = mPlaybackPosition + 1; i < mPlaybackPosition + mForwardCacheSize; i++) {
-                int priority = TrackDownloader.Priority.FUTURETRACK;
-                if (i == (mPlaybackPosition + 1)) priority = TrackDownloader.Priority.NEXTTRACK;
-                fetchTrack(mQueue.get(i), priority);
-            }
-        } catch (ArrayIndexOutOfBoundsException e) {}
+        int forward = mPlanner.forwardDepth();
+        for (int i = pos + 1; i <= pos + forward && i < queue.length; i++) {
+            int priority = TrackDownloader.Priority.FUTURETRACK;
+            if (i == (pos + 1)) priority = TrackDownloader.Priority.NEXTTRACK;
+            fetchTrack(queue[i], priority);
+        }
         
-        try {
-            for (int i = mPlaybackPosition - 1; i < mPlaybackPosition - mPreviousCacheSize; i++)
-                fetchTrack(mQueue.get(i), TrackDownloader.Priority.FUTURETRACK);
-        } catch (ArrayIndexOutOfBoundsException e) {}
+        int previous = mPlanner.previousDepth();
+        for (int i = pos - 1; i >= pos - previous && i >= 0; i--)
+            fetchTrack(queue[i], TrackDownloader.Priority.FUTURETRACK);
     }
 
     private void fetchTrack(TrackData t, int priority)
@@ -154,7 +214,7 @@ class PlaybackQueue
         //Check to see if this is a local track. If it is then no downloading is needed
         if (LocalId.class.isInstance(t.mTrack.getId())) {
             Logger.log("fetchTrack(): have local track");
-            t.mCachedTrack = new CachedTrack((LocalId)t.mTrack.getId(), t.mTrack);
+            setCachedTrack(t, new CachedTrack((LocalId)t.mTrack.getId(), t.mTrack));
             return;
         }
         
@@ -162,7 +222,7 @@ class PlaybackQueue
         //when they should have LocalIds.  I do not have time to find this problem in MediaStore
         //at the moment so I am placing a guard here
         if (t.mTrack.getFileKey().startsWith("/sdcard")) {
-            t.mCachedTrack = new CachedTrack(new LocalId(0), t.mTrack);
+            setCachedTrack(t, new CachedTrack(new LocalId(0), t.mTrack));
             Logger.log("fetchTrack(): should have local track");
             return;
         }
@@ -193,16 +253,18 @@ class PlaybackQueue
         } else {
             Logger.log("fetchTrack() must create CachedTrack");
             Pair<Integer, CachedTrack> result = mDownloader.downloadTrack(t.mTrack, priority, "mp3", Bitrate.getBitrate(mService.get(), mContext.get()));
-            t.mCachedTrack = result.second;
+            setCachedTrack(t, result.second);
             t.mJobId        = result.first;
         }
     }
 
-    private class TrackData 
+    //A queue entry is shared by the snapshots it is in.  What we are fetching for it is filled in
+    //under the write lock and read by anyone, so those fields are volatile.
+    private static class TrackData 
     {
-        final Track       mTrack;
-        CachedTrack mCachedTrack;
-        Integer     mJobId;
+        final Track          mTrack;
+        volatile CachedTrack mCachedTrack;
+        volatile Integer     mJobId;
         
         TrackData(Track t)
         {
@@ -212,47 +274,45 @@ class PlaybackQueue
         }
     }
 
-    synchronized public void clear()
+    public void clear()
     {
         setPlaybackQueue(null);
     }
 
-    synchronized public IdParcel[] getTrackIds()
+    public IdParcel[] getTrackIds()
     {
-        if  (mQueue != null && mQueue.size() > 0) {
-            IdParcel[] ids = new IdParcel[mQueue.size()];
-            for (int i = 0; i < mQueue.size(); i++) {
-                ids[i] = new IdParcel(mQueue.get(i).mTrack.getId());
-            }
-            return ids;
+        TrackData[] queue = mSnapshot.mTracks;
+        IdParcel[]  ids   = new IdParcel[queue.length];
+        for (int i = 0; i < queue.length; i++) {
+            ids[i] = new IdParcel(queue[i].mTrack.getId());
         }
-        return new IdParcel[] {};
+        return ids;
     }
 
-    synchronized public void cleanFailures()
+    public void cleanFailures()
     {
-        for (TrackData data : mQueue) {
-            if (data.mCachedTrack != null) {
+        synchronized (mWriteLock) {
+            for (TrackData data : mSnapshot.mTracks) {
                 CachedTrack t = data.mCachedTrack;
-                if (t.getStatus() == CachedTrack.Status.failed) {
-                    String path = t.getPath();
-                    if (path != null) {
-                        File file = new File(path);
-                        if (file.exists()) {
-                            if (!file.delete()) {
-                                Logger.log("Failed to delete old file: " + path);
-                            }
+                if (t == null || t.getStatus() != CachedTrack.Status.failed) continue;
+                String path = t.getPath();
+                //A partial download with a journal is kept so the next fetch resumes it
+                if (path != null && !new DownloadJournal(path).load(new ByteRangeMap())) {
+                    File file = new File(path);
+                    if (file.exists()) {
+                        if (!file.delete()) {
+                            Logger.log("Failed to delete old file: " + path);
                         }
                     }
-                    data.mCachedTrack = null;
                 }
+                setCachedTrack(data, null);
             }
-        }        
+        }
     }
 
-    synchronized public int size()
+    public int size()
     {
-        return mQueue.size();
+        return mSnapshot.mTracks.length;
     }
     
     
@@ -34,6 +34,7 @@ public class PlaybackService extends Service
     private PlaybackHandler      mPlaybackHandler;
     private HttpServer           mServer;
     private TrackDownloader      mDownloader;
+    private PinnedTracks         mPinnedTracks;
     private GuiNotifier          mNotifier;
     private int                  mErrorCount;
     private Object               mChangingTrackLock;
@@ -67,6 +68,7 @@ public class PlaybackService extends Service
         mPlayStateLocker.lock();
         mDownloader      = new TrackDownloader(this, mChangingTrackLock, mErrorListener);
         mPlaybackQueue   = new PlaybackQueue(this, getBaseContext(), mDownloader);
+        mPinnedTracks    = new PinnedTracks(this, mDownloader);
         mPlaybackHandler = new PlaybackHandler(getBaseContext(), new MyOnInfoListener(), mErrorListener, new MyOnCompletionListener());
         mServer          = HttpServer.startServer(mPlaybackQueue);
         mNotifier        = new GuiNotifier(this, getBaseContext());
@@ -77,6 +79,7 @@ public class PlaybackService extends Service
         mTelephonyManager.listen(mPhoneStateListener, Mp3TunesPhoneStateListener.LISTEN_CALL_STATE);
         
         mIsStarting = true;
+        mPinnedTracks.sync();
         timer.push();
     }
 
@@ -86,6 +89,8 @@ public class PlaybackService extends Service
         Logger.log("destroying music service");
         mPlayStateLocker.release();
         mPlayStateLocker = null;
+        mPinnedTracks.shutdown();
+        mDownloader.destroy();
     }
 
     @Override
@@ -207,6 +212,7 @@ public class PlaybackService extends Service
             synchronized (mChangingTrackLock) {
                 Logger.log("next() obtained lock");
                 try {
+                    mPlaybackQueue.trackSkipped();
                     CachedTrack t = mPlaybackQueue.nextPlaybackTrack();
                     if (t == null) {
                         mNotifier.playlistFinished();
@@ -219,6 +225,7 @@ public class PlaybackService extends Service
                         return false;
                     }
                     mNotifier.nextTrack(t);
+                    prepareNextTrack();
                     if (mPlaybackQueue.peekNextPlaybackTrack() == null) {
                         mGenerateTracksAction = new GenerateTracksAction(t.getId());
                         mGenerateTracksAction.execute((Void[])null);
@@ -252,6 +259,7 @@ public class PlaybackService extends Service
                         return false;
                     }
                     mNotifier.prevTrack(t);
+                    prepareNextTrack();
                 } finally {
                     mPlaybackQueue.cleanFailures();
                 }
@@ -285,6 +293,7 @@ public class PlaybackService extends Service
                         return false;
                     }
                     mNotifier.play(t);
+                    prepareNextTrack();
                     if (mPlaybackQueue.peekNextPlaybackTrack() == null) {
                         mGenerateTracksAction = new GenerateTracksAction(t.getId());
                         mGenerateTracksAction.execute((Void[])null);
@@ -361,6 +370,16 @@ public class PlaybackService extends Service
             return mPlaybackQueue.getTrackIds();
         }
 
+        public void pinPlaylist(String playlistId, boolean pinned) throws RemoteException
+        {
+            mPinnedTracks.pinPlaylist(playlistId, pinned);
+        }
+
+        public long getPinnedBytes() throws RemoteException
+        {
+            return mPinnedTracks.getPinnedSize();
+        }
+
         public boolean isPaused() throws RemoteException
         {
             try {
@@ -496,6 +515,13 @@ public class PlaybackService extends Service
         return PlaybackState.State.PLAYING;
     }
     
+    //Gets the player for the next track ready while this one plays, so that the change of
+    //track does not wait for it to be prepared
+    private void prepareNextTrack()
+    {
+        mPlaybackHandler.prepareNext(mPlaybackQueue.peekNextCachedTrack());
+    }
+    
     void finish()
     {
         synchronized (mChangingTrackLock) {
@@ -573,6 +599,7 @@ public class PlaybackService extends Service
                         mNotifier.sendPlaybackError(t, "Unable to play: " + t.getAlbumTitle() + " by: " + t.getArtistName());
                         return;
                     }
+                    prepareNextTrack();
                 } finally {
                     mPlaybackQueue.cleanFailures();
                 }
@@ -622,6 +649,7 @@ public class PlaybackService extends Service
         {
             Logger.log("Track complete");
             mPlaybackHandler.finish();
+            mPlaybackQueue.trackCompleted();
             synchronized (mChangingTrackLock) {
                 CachedTrack t = mPlaybackQueue.nextPlaybackTrack();
                 if (t == null) {
@@ -634,6 +662,7 @@ public class PlaybackService extends Service
                         mNotifier.sendPlaybackError(t, "Unable to play: " + t.getAlbumTitle() + " by: " + t.getArtistName());
                         return;
                     }
+                    prepareNextTrack();
                     if (mPlaybackQueue.peekNextPlaybackTrack() == null) {
                         mGenerateTracksAction = new GenerateTracksAction(t.getId());
                         mGenerateTracksAction.execute((Void[])null);
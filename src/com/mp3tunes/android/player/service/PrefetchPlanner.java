@@ -0,0 +1,121 @@
+package com.mp3tunes.android.player.service;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import com.mp3tunes.android.player.Music;
+
+/**
+ * Decides how many tracks around the playing one the queue fetches.  A fast connection fills the
+ * queue well ahead, a slow one keeps to the playing track and the next one.  The depth comes down
+ * when the battery is low, when the cache budget has no room for more tracks, and when the user
+ * skips most tracks before they finish, since the tracks we fetch ahead are then wasted.
+ */
+class PrefetchPlanner
+{
+    //The next track is always fetched, so that the change of track does not wait on it
+    private static final int    MIN_FORWARD = 1;
+    private static final int    MAX_FORWARD = 5;
+    
+    //What we fetch ahead until the downloader has measured the connection
+    private static final int    DEFAULT_FORWARD = 2;
+    
+    //How many times faster than it plays a track has to download for each extra track ahead
+    private static final int[]  SPEEDUPS = {2, 8, 20, 40};
+    
+    //Used to turn the cache budget into a number of tracks, and when we play the original file
+    private static final long   TRACK_SIZE       = 5 * 1024 * 1024;
+    private static final int    DEFAULT_BITRATE  = 128000;
+    
+    //Below this much battery, when not charging, we only fetch what we need now
+    private static final int    LOW_BATTERY      = 20;
+    
+    //Skips count against the tracks played to the end as a moving average
+    private static final float  SKIP_WEIGHT      = 0.2f;
+    private static final float  HIGH_SKIP_RATE   = 0.5f;
+
+    private Service         mService;
+    private TrackDownloader mDownloader;
+    private CacheIndex      mIndex;
+    private float           mSkipRate = 0;
+
+    PrefetchPlanner(Service service, TrackDownloader downloader)
+    {
+        mService    = service;
+        mDownloader = downloader;
+        mIndex      = CacheIndex.getInstance(service);
+    }
+    
+    synchronized void trackSkipped()
+    {
+        mSkipRate = mSkipRate * (1 - SKIP_WEIGHT) + SKIP_WEIGHT;
+    }
+    
+    synchronized void trackCompleted()
+    {
+        mSkipRate = mSkipRate * (1 - SKIP_WEIGHT);
+    }
+    
+    //How many tracks after the playing one to fetch
+    synchronized int forwardDepth()
+    {
+        int depth = DEFAULT_FORWARD;
+        long rate = mDownloader.getThroughput();
+        if (rate > 0) {
+            long playRate = playbackRate();
+            depth = MIN_FORWARD;
+            for (int speedup : SPEEDUPS) {
+                if (rate >= playRate * speedup) depth++;
+            }
+        }
+        if (mSkipRate > HIGH_SKIP_RATE) depth--;
+        if (lowBattery())               depth = MIN_FORWARD;
+        depth = Math.min(depth, tracksThatFit());
+        
+        depth = Math.max(MIN_FORWARD, Math.min(depth, MAX_FORWARD));
+        Logger.log("PrefetchPlanner: fetching " + depth + " tracks ahead. Throughput: " + rate + " skip rate: " + mSkipRate);
+        return depth;
+    }
+    
+    //How many tracks before the playing one to fetch.  Going back is rare, so this is only
+    //worth it when fetching costs little.
+    synchronized int previousDepth()
+    {
+        if (lowBattery()) return 0;
+        long rate = mDownloader.getThroughput();
+        if (rate > 0 && rate < playbackRate() * SPEEDUPS[0]) return 0;
+        return 1;
+    }
+    
+    //Bytes a second it takes to play a track at the rate we download at
+    private long playbackRate()
+    {
+        int bitrate = Bitrate.getBitrate(mService, mService);
+        if (bitrate <= 0) bitrate = DEFAULT_BITRATE;
+        return bitrate / 8;
+    }
+    
+    //How many tracks fit in the part of the cache budget that is not pinned
+    private int tracksThatFit()
+    {
+        long budget = Music.getMaxCacheSize(mService);
+        if (budget == -1) return MAX_FORWARD;
+        long free = budget - mIndex.getPinnedSize();
+        return (int)Math.min(MAX_FORWARD, free / TRACK_SIZE);
+    }
+    
+    //The battery broadcast is sticky, so we can read it without registering a receiver.  The
+    //extras are named by hand since BatteryManager only names them from API level 5.
+    private boolean lowBattery()
+    {
+        Intent battery = mService.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) return false;
+        if (battery.getIntExtra("plugged", 0) != 0) return false;
+        int level = battery.getIntExtra("level", -1);
+        int scale = battery.getIntExtra("scale", 100);
+        if (level < 0 || scale <= 0) return false;
+        return level * 100 / scale < LOW_BATTERY;
+    }
+}
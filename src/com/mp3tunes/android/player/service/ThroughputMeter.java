@@ -0,0 +1,50 @@
+package com.mp3tunes.android.player.service;
+
+/**
+ * Measures how fast downloads arrive, in bytes a second, as a moving average over the time that
+ * bytes were actually arriving.  Time with nothing downloading does not count against it.
+ */
+class ThroughputMeter
+{
+    //Bytes are counted over windows this long before they are folded into the average
+    private static final long   WINDOW = 2000;
+    
+    //A gap this long between writes means downloading stopped and the window starts again
+    private static final long   IDLE   = 3000;
+    
+    //How much a new window counts against what we measured before
+    private static final double WEIGHT = 0.3;
+
+    private long   mWindowStart = 0;
+    private long   mLast        = 0;
+    private long   mBytes       = 0;
+    private double mRate        = 0;
+
+    synchronized void add(long bytes)
+    {
+        long now = System.currentTimeMillis();
+        if (mWindowStart == 0 || now - mLast > IDLE) {
+            mWindowStart = now;
+            mBytes       = 0;
+        }
+        mBytes += bytes;
+        mLast   = now;
+
+        long elapsed = now - mWindowStart;
+        if (elapsed >= WINDOW) {
+            double rate = mBytes * 1000.0 / elapsed;
+            if (mRate == 0)
+                mRate = rate;
+            else
+                mRate = mRate * (1 - WEIGHT) + rate * WEIGHT;
+            mWindowStart = now;
+            mBytes       = 0;
+        }
+    }
+
+    //Bytes a second, or 0 if we have not measured anything yet
+    synchronized long getRate()
+    {
+        return (long)mRate;
+    }
+}
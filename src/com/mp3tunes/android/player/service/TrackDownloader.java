@@ -1,16 +1,26 @@
 package com.mp3tunes.android.player.service;
 
 import java.io.File;
-import java.io.FileFilter;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
@@ -24,9 +34,6 @@ import org.apache.http.protocol.HttpContext;
 import android.content.Context;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
-import android.os.AsyncTask;
-import android.os.Handler;
-import android.os.Message;
 import android.util.Log;
 
 import com.binaryelysium.mp3tunes.api.HttpClientCaller;
@@ -42,19 +49,37 @@ import com.mp3tunes.android.player.util.Timer;
 
 public class TrackDownloader
 {
-    int                                 mNextJobId = 1;
+    AtomicInteger                       mNextJobId = new AtomicInteger(1);
     PriorityBlockingQueue<Job>          mQueue;
-    boolean                             mDestroying;
+    volatile boolean                    mDestroying;
     HttpClientCaller.Progress           mProgressCallback;
-    private Job                         mJob;
-    private OutputStreamResponseHandler mOutputHandler;
+    private List<Job>                   mRunning;
+    private DownloadWorker[]            mWorkers;
     private Object                      mChangingTrackLock;
     private Context                     mContext;
     private Timer                       mTimer;
     private MediaScannerConnection      mScanner;
     private MyOnErrorListener           mErrorListener;
+    private CacheIndex                  mIndex;
+    private ThroughputMeter             mThroughput = new ThroughputMeter();
     
-    private final int POLL = 0;
+    //Jobs are downloaded by a fixed set of workers.  The playing track always gets one of them,
+    //pausing the least important job if it has to, the other tracks wait for a free worker.
+    private static final int  WORKERS         = 2;
+    
+    //The first request of a download asks for FIRST_SEGMENT bytes.  If the server answers with
+    //a 206 we know the length of the file and fetch the rest of it in SEGMENT sized ranges,
+    //over MAX_CONNECTIONS connections at a time for the track that is playing.
+    private static final int  MAX_CONNECTIONS = 3;
+    private static final long FIRST_SEGMENT   = 64 * 1024;
+    private static final long SEGMENT         = 512 * 1024;
+    private static final int  BUFFER_SIZE     = 16 * 1024;
+    
+    //Forcing the file to disk is slow, so while a download runs we checkpoint it at most this
+    //often in milliseconds.  Starting, pausing and stopping a job always checkpoint.
+    private static final long CHECKPOINT_INTERVAL = 10 * 1000;
+    
+    private final ExecutorService mSegmentPool = Executors.newCachedThreadPool();
     
     static final public class Priority
     {
@@ -66,52 +91,115 @@ public class TrackDownloader
     }
     public TrackDownloader(Context context, Object lock, MyOnErrorListener errorListener)
     {
-        mNextJobId         = 0;
         mQueue             = new PriorityBlockingQueue<Job>(10, new JobComparator());
         mDestroying        = false;
         mChangingTrackLock = lock;
         mErrorListener     = errorListener;
         mContext           = context;
-        mHandler.handleMessage(mHandler.obtainMessage(POLL));
+        mRunning           = new ArrayList<Job>();
+        mIndex             = CacheIndex.getInstance(context);
+        cleanUpCache();
         mScanner = new MediaScannerConnection(mContext, mClient);
         mScanner.connect();
+        mWorkers           = new DownloadWorker[WORKERS];
+        for (int i = 0; i < WORKERS; i++) {
+            mWorkers[i] = new DownloadWorker(i);
+            mWorkers[i].start();
+        }
     }
     
     //returns the Job Id of the track we are going to download
     public Pair<Integer, CachedTrack> downloadTrack(Track track,  int priority, String format, int bitrate)
+    {
+        //A copy at the rate we want or better is as good as the one we would download
+        String key  = CachedTrack.encode(track.getFileKey());
+        String path = mIndex.find(key, format, bitrate, true);
+        if (path != null) {
+            Logger.log("downloadTrack(): using cached copy at: " + path);
+            mIndex.touch(path);
+            return new Pair<Integer, CachedTrack>(null, new CachedTrack(track, format, path));
+        }
+        
+        //If the user lets us we play a worse copy now and fetch the better one when we are idle
+        if (priority > Priority.FORSTORAGE && Music.getUpgradeCachedTracks(mContext)) {
+            path = mIndex.find(key, format, bitrate, false);
+            if (path != null) {
+                Logger.log("downloadTrack(): using cached copy at: " + path + " and upgrading to: " + bitrate);
+                mIndex.touch(path);
+                download(track, Priority.FORSTORAGE, format, bitrate);
+                return new Pair<Integer, CachedTrack>(null, new CachedTrack(track, format, path));
+            }
+        }
+        return download(track, priority, format, bitrate);
+    }
+    
+    private Pair<Integer, CachedTrack> download(Track track,  int priority, String format, int bitrate)
     {
         try {
             //First we try to create a CachedTrack for the Track
             CachedTrack cached = new CachedTrack(track, format, bitrate);
             
-            //If the track isn't finished then create a job to download it
+            //If the track isn't finished then create a job to download it.  A queued job has no
+            //file yet, so we look for one by its path before we make another.
             if (cached.getStatus() != CachedTrack.Status.finished) {
-                Job job    = new Job(priority, cached, cached.getPlayUrl());
-                addJob(job);
-                return new Pair<Integer, CachedTrack>(job.id, cached);
+                synchronized (mQueue) {
+                    Job job = getJobByPath(cached.getPath());
+                    if (job != null) {
+                        if (priority > job.priority) resetPriority(job.id, priority);
+                        return new Pair<Integer, CachedTrack>(job.id, job.track);
+                    }
+                    job = new Job(priority, cached, cached.getPlayUrl());
+                    //The file is new so any journal left beside it is stale
+                    job.journal.delete();
+                    addJob(job);
+                    return new Pair<Integer, CachedTrack>(job.id, cached);
+                }
             }
             
             //If the track is already finished then no job is needed
+            mIndex.touch(cached.getPath());
             return new Pair<Integer, CachedTrack>(null, cached);
         } catch (AlreadyDownloadedException e) {
             //We have a file in the temporary location for this track. So, we check to see if there is a job
-            //to download it already
+            //to download it already.  The lookup and the new job happen under one lock so that two
+            //callers can not both make a job that writes to the file.
             String path = e.getPath();
             Logger.log("downloadTrack(): already have file at: " + path);
-            Job job = getJobByPath(path);
-            if (job != null) {
-                //We have a job so we want to adjust the priority and return it
-                Logger.log("downloadTrack(): Already have job adjusting priority");
-                job.priority = priority;
-                return new Pair<Integer, CachedTrack>(job.id, job.track);
+            synchronized (mQueue) {
+                Job job = getJobByPath(path);
+                if (job != null) {
+                    //We have a job so we want to adjust the priority and return it.  Only ever raise
+                    //it, a background download must not lower the priority of the playing track.
+                    Logger.log("downloadTrack(): Already have job adjusting priority");
+                    if (priority > job.priority) resetPriority(job.id, priority);
+                    return new Pair<Integer, CachedTrack>(job.id, job.track);
+                }
+                
+                //A download that stopped with a journal can carry on from where it got to
+                DownloadJournal journal = new DownloadJournal(path);
+                ByteRangeMap    ranges  = new ByteRangeMap();
+                if (journal.load(ranges)) {
+                    Logger.log("downloadTrack(): resuming partial download with " + ranges.size() + " bytes");
+                    CachedTrack cached = new CachedTrack(track, format, bitrate, path, ranges, journal.mLength);
+                    job = new Job(priority, cached, cached.getPlayUrl());
+                    job.total = journal.mLength;
+                    job.etag  = journal.mETag;
+                    addJob(job);
+                    return new Pair<Integer, CachedTrack>(job.id, cached);
+                }
+                
+                //Since there was no current job for this temporary track we assume that it is a failed download.
+                //In this case we delete it and create a new one
+                File file = new File(path);
+                if (!file.delete()) {
+                    Logger.log("downloadTrack(): unable to delete stale file at: " + path);
+                    CachedTrack cached = new CachedTrack(track, format, bitrate, path, new ByteRangeMap(), -1);
+                    cached.setErrorMessage("Unable to delete: " + path);
+                    cached.setStatus(CachedTrack.Status.failed);
+                    return new Pair<Integer, CachedTrack>(null, cached);
+                }
             }
-            
-            //Since there was no current job for this temporary track we assume that it is a failed download.
-            //In this case we delete it and create a new one
-            
-            File file = new File(path);
-            if (file.delete()) return downloadTrack(track, priority, format, bitrate);
-            return new Pair<Integer, CachedTrack>(job.id, job.track);
+            return download(track, priority, format, bitrate);
         }
     }
 
@@ -146,8 +234,10 @@ public class TrackDownloader
                 if (job.track.getPath().equals(path)) 
                     return job;
             }
-            if (mJob != null && mJob.track.getPath().equals(path))
-                return mJob;
+            for (Job job : mRunning) {
+                if (job.track.getPath().equals(path)) 
+                    return job;
+            }
         }
         return null;
     }
@@ -168,6 +258,12 @@ public class TrackDownloader
                     break;
                 }
             } while (true);
+            
+            //Running jobs have to be lowered as well or they could never be paused
+            for (Job job : mRunning) {
+                if (job.priority > Priority.SKIPPEDTRACK)
+                    job.priority = Priority.SKIPPEDTRACK;
+            }
         }
     }
     
@@ -185,7 +281,11 @@ public class TrackDownloader
                     break;
                 }
             }
+            for (Job job : mRunning) {
+                if (id.equals(job.id)) job.priority = priority;
+            }
         }
+        preempt();
     }
     
     private void addJob(Job job)
@@ -195,6 +295,30 @@ public class TrackDownloader
             mQueue.add(job);     
             Logger.log("addJob(): job count: " + mQueue.size());
         }
+        preempt();
+    }
+    
+    //Makes sure that a NOWPLAYING job at the head of the queue gets a worker.  If every worker is
+    //busy with something less important the least important of them is paused.
+    private void preempt()
+    {
+        synchronized (mQueue) {
+            Job next = mQueue.peek();
+            if (next == null || next.priority < Priority.NOWPLAYING) return;
+            if (mRunning.size() < WORKERS) return;
+            
+            Job victim = null;
+            for (Job job : mRunning) {
+                //Already making room
+                if (job.paused) return;
+                if (victim == null || job.priority < victim.priority) victim = job;
+            }
+            if (victim == null || victim.priority >= next.priority) return;
+            
+            Logger.log("preempt(): Pausing download of: " + victim.track.getTitle() + " in favor of: " + next.track.getTitle());
+            mTimer = new Timer("Begining preempt");
+            victim.paused = true;
+        }
     }
 
     public class Job
@@ -203,32 +327,101 @@ public class TrackDownloader
         int              priority;
         CachedTrack      track;
         String           url;
-        FileOutputStream stream;
-        Boolean          cancelled;
-        
-
+        RandomAccessFile file;
+        FileChannel      channel;
+        volatile Boolean cancelled;
+        volatile boolean paused;
+        long             total;
+        String           etag;
+        DownloadJournal  journal;
+        long             lastCheckpoint;
         
+        //Where the player last asked for bytes we did not have, or -1.  Segments are fetched
+        //from here next.
+        final AtomicLong seek = new AtomicLong(-1);
         
         public Job(int priority, CachedTrack track, String url) 
         {
-            this.id        = mNextJobId;
+            this.id        = mNextJobId.getAndIncrement();
             this.priority  = priority;
             this.track     = track;
             this.url       = url;
             this.cancelled = false;
+            this.paused    = false;
+            this.total     = -1;
+            this.etag      = null;
+            this.journal   = new DownloadJournal(track.getPath());
+        }
+        
+        //Jobs only hold their file open while a worker has them.  Opening creates the file.
+        void open() throws FileNotFoundException
+        {
+            Logger.log("Creating stream for file: " + track.getPath());
+            file    = new RandomAccessFile(track.getPath(), "rw");
+            channel = file.getChannel();
+        }
+        
+        //Throws away everything downloaded so far
+        void reset() throws IOException
+        {
+            if (file != null) {
+                file.setLength(0);
+            } else if (new File(track.getPath()).exists()) {
+                RandomAccessFile f = new RandomAccessFile(track.getPath(), "rw");
+                try {
+                    f.setLength(0);
+                } finally {
+                    f.close();
+                }
+            }
+            track.mRanges.clear();
+            total = -1;
+            etag  = null;
+            journal.delete();
+        }
+        
+        //Makes what has been written so far durable and records it in the journal, so that a
+        //restart can resume from here.  Only downloads with a known length can be resumed.
+        //Segments keep writing while we do this, so the ranges are copied before the force and
+        //the journal never names bytes that were written after it.
+        synchronized void checkpoint(boolean always)
+        {
+            if (total <= 0 || channel == null) return;
+            long now = System.currentTimeMillis();
+            if (!always && now - lastCheckpoint < CHECKPOINT_INTERVAL) return;
             try {
-                Logger.log("Creating stream for file: " + track.getPath());
-                this.stream   = new FileOutputStream(track.getPath());
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-                assert(false);
-                //This should be an impossible situation.  We literally just successfully created this file a few microseconds ago.
-                //If it is no longer there then what can we do?
+                ByteRangeMap ranges = track.mRanges.copy();
+                channel.force(false);
+                journal.save(ranges, total, etag);
+                lastCheckpoint = now;
+            } catch (IOException e) {
+                Logger.log(e);
             }
-
-            mNextJobId++;
         }
-
+        
+        synchronized void close()
+        {
+            try {
+                if (file != null) file.close();
+            } catch (IOException e) {
+                Logger.log(e);
+            }
+            file    = null;
+            channel = null;
+        }
+        
+        //Segments write from several threads at once.  Positioned channel writes do not share
+        //a file pointer so they do not need to be serialized.
+        void write(byte[] buffer, int size, long position) throws IOException
+        {
+            ByteBuffer b = ByteBuffer.wrap(buffer, 0, size);
+            long at = position;
+            while (b.hasRemaining()) {
+                at += channel.write(b, at);
+            }
+            track.written(position, position + size);
+            mThroughput.add(size);
+        }
     }
     
     public class JobComparator implements Comparator<Job>
@@ -244,23 +437,24 @@ public class TrackDownloader
     }
     
     
-    private final Handler mHandler = new Handler() {
-        
-        private int mCount = 0;
-        
-        private MediaScannerConnection scanner;
-        
+    //Each worker takes the most important job off of the queue and downloads it.  A job that is
+    //paused to make room for the playing track goes back into the queue with everything it has
+    //downloaded so far, and the next worker to take it carries on from there.
+    private class DownloadWorker extends Thread
+    {
+        private Job                         mJob;
+        private OutputStreamResponseHandler mOutputHandler;
         
-        private void pollNext(long delay) 
+        DownloadWorker(int number)
         {
-            Message msg = mHandler.obtainMessage(POLL);
-            mHandler.removeMessages(POLL);
-            mHandler.sendMessageDelayed(msg, delay);
+            super("TrackDownloader-" + number);
+            setDaemon(true);
         }
-
         
         void fail(String message)
         {
+            //A paused job has not failed, it is waiting for a worker
+            if (mJob.paused) return;
             logJobState("Failed download of");
             mJob.track.setErrorMessage(message);
             mJob.track.setStatus(CachedTrack.Status.failed);
@@ -283,23 +477,40 @@ public class TrackDownloader
         
         boolean setupNextJob()
         {
+            Job job;
+            try {
+                job = mQueue.take();
+            } catch (InterruptedException e) {
+                return false;
+            }
             synchronized (mChangingTrackLock) {
+                mJob           = job;
+                mOutputHandler = null;
+                //Pinned tracks can fill the cache budget but not go past it
+                if (mJob.priority == Priority.FORSTORAGE && pinnedCacheFull()) {
+                    logJobState("Cache is full of pinned tracks, dropping download of");
+                    mJob.cancelled = true;
+                    mJob.track.setErrorMessage("Cache is full of pinned tracks");
+                    mJob.track.setStatus(CachedTrack.Status.failed);
+                }
                 synchronized (mQueue) {
+                    if (mJob.cancelled) return false;
+                    mJob.paused = false;
+                    mRunning.add(mJob);
+                }
+                
+                //Only a job that is going to run gets its file
                 try {
-                    if (mJob.track.getStatus() == CachedTrack.Status.failed &&
-                        mJob.priority          != Priority.NOWPLAYING       &&
-                        mJob.cancelled         != true) {
-                            mJob.stream.close();
-                            mJob.stream = new FileOutputStream(mJob.track.getPath());
-                            mJob.track.setStatus(CachedTrack.Status.downloading);
-                            mQueue.add(mJob);
+                    if (mJob.file == null) mJob.open();
+                } catch (FileNotFoundException e) {
+                    Logger.log(e);
+                    synchronized (mQueue) {
+                        mRunning.remove(mJob);
                     }
-                } catch (Exception e) {}
-                    mJob = mQueue.poll();
+                    fail("Unable to open: " + mJob.track.getPath());
+                    return false;
                 }
-                if (mJob == null) return false;
                 mJob.track.setStatus(CachedTrack.Status.downloading);
-                mOutputHandler = new OutputStreamResponseHandler(mJob);
                 logJobState("Begining download of");
                 
                 //check to make sure we have cache space    // 
@@ -308,10 +519,48 @@ public class TrackDownloader
             return true;
         }
         
+        void finishJob()
+        {
+            synchronized (mQueue) {
+                mRunning.remove(mJob);
+            }
+            int status = mJob.track.getStatus();
+            if (status != CachedTrack.Status.finished) mJob.checkpoint(true);
+            mJob.close();
+            
+            if (mJob.paused && status != CachedTrack.Status.finished && !mJob.cancelled) {
+                logJobState("Paused download of");
+                mJob.track.setStatus(CachedTrack.Status.queued);
+                mQueue.add(mJob);
+                return;
+            }
+            
+            if (status == CachedTrack.Status.failed &&
+                mJob.priority != Priority.NOWPLAYING       &&
+                mJob.cancelled != true) {
+                try {
+                    //Only start over when there is nothing to resume from
+                    if (mJob.total <= 0) mJob.reset();
+                    mJob.track.setStatus(CachedTrack.Status.queued);
+                    mQueue.add(mJob);
+                } catch (IOException e) {
+                    Logger.log(e);
+                }
+                return;
+            }
+            
+            if (status == CachedTrack.Status.finished) mJob.journal.delete();
+            if (mJob.track.cacheTrack()) {
+                mIndex.add(new File(mJob.track.getPath()));
+                if (mScanner.isConnected())
+                    mScanner.scanFile(mJob.track.getPath(), null);
+            }
+        }
+        
         void handleSocketException(String message)
         {
             try {
-                if (mOutputHandler.mReturn) {
+                if (mOutputHandler != null && mOutputHandler.mReturn) {
                     succeed();
                 } else {
                     fail(message);
@@ -328,44 +577,87 @@ public class TrackDownloader
                 mTimer.push();
                 mTimer = null;
             }
-            if (!HttpClientCaller.getInstance().callStream(mJob.url, mOutputHandler, null)) {
+            
+ 
+            //A job whose server answers ranged requests carries on where it stopped
+            if (mJob.total > 0) {
+                if (resume()) {
+                    succeed();
+                    return;
+                }
+                logJobState("File changed on the server, starting over with");
+                mJob.reset();
+            }
+            
+            //Otherwise we have to start again from the beginning
+            if (mJob.track.mRanges.size() > 0) mJob.reset();
+            mOutputHandler = new OutputStreamResponseHandler(mJob, 0, FIRST_SEGMENT - 1);
+            if (!HttpClientCaller.getInstance().callStream(mJob.url, 0, FIRST_SEGMENT - 1, mOutputHandler, null)) {
                 throw new IOException();
             }
+            
+            //A server that ignores ranges has sent us the whole file already
+            if (mOutputHandler.mPartial) {
+                long total = mOutputHandler.mTotal;
+                if (total > FIRST_SEGMENT) {
+                    mJob.total = total;
+                    mJob.etag  = mOutputHandler.mETag;
+                    mJob.checkpoint(true);
+                }
+                if (total < 0 || total > FIRST_SEGMENT)
+                    downloadSegments(mJob, FIRST_SEGMENT, total);
+            }
+            
+            //Never mark a file finished that is missing part of what the server said it sent
+            long expected = mOutputHandler.mPartial ? mOutputHandler.mTotal : mJob.track.getContentLength();
+            if (expected > 0 && !mJob.track.mRanges.contains(0, expected))
+                throw new IOException("Download ended early at: " + mJob.track.mRanges.contiguousFrom(0) + " of: " + expected);
             succeed();
         }
         
-        public void handleMessage(Message msg) {
-            if (msg.what == POLL) {
-                Thread t = new Thread() {
-                    public void run() {
-                        while (!mDestroying) {
-                            if (!setupNextJob()) break;
-                            try {
-                                performDownload();
-                            } catch (SocketTimeoutException e) {
-                                handleSocketException("network timeout error");
-                            } catch (SocketException e) {
-                                handleSocketException("broken network connection error");
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                                fail(e.getMessage());
-                            }
-                            if (mJob.track.cacheTrack() && mScanner.isConnected()) {
-                                mScanner.scanFile(mJob.track.getPath(), null);
-                            }
-                        }
-                        mHandler.post(mPoll);
-                    }
-                };
-                t.start();
+        //Carries on with a download we know the length of.  Returns false if the file on the
+        //server is no longer the one we started to download.
+        boolean resume() throws IOException
+        {
+            long from = mJob.track.mRanges.contiguousFrom(0);
+            logJobState("Resuming at byte " + from + " download of");
+            if (from < mJob.total) {
+                long end = Math.min(from + FIRST_SEGMENT, mJob.total) - 1;
+                mOutputHandler = new OutputStreamResponseHandler(mJob, from, end);
+                boolean result;
+                try {
+                    result = HttpClientCaller.getInstance().callStream(mJob.url, from, end, mOutputHandler, null);
+                } catch (IOException e) {
+                    //Aborting the request can surface as an exception
+                    if (mOutputHandler.mChanged) return false;
+                    throw e;
+                }
+                if (mOutputHandler.mChanged) return false;
+                if (!result || !mOutputHandler.mPartial)
+                    throw new IOException("Failed to resume download at: " + from);
+                from = end + 1;
             }
+            downloadSegments(mJob, from, mJob.total);
+            return true;
         }
-        Runnable mPoll = new Runnable() {
-            public void run()
-            {
-                pollNext(250);
+        
+        public void run()
+        {
+            while (!mDestroying) {
+                if (!setupNextJob()) continue;
+                try {
+                    performDownload();
+                } catch (SocketTimeoutException e) {
+                    handleSocketException("network timeout error");
+                } catch (SocketException e) {
+                    handleSocketException("broken network connection error");
+                } catch (IOException e) {
+                    if (!mJob.paused) e.printStackTrace();
+                    fail(e.getMessage());
+                }
+                finishJob();
             }
-        };
+        }
         
 //        public String copyFileToCorrectExtension(String contentType, String file)
 //        {
@@ -401,19 +693,179 @@ public class TrackDownloader
 //            }
 //            return newFile;
 //        }
-    };
+    }
+    
+    //Fetches the rest of a job's file, from start to total, one SEGMENT at a time.  The track
+    //that is playing uses several connections which take the next segment as they finish one,
+    //so the segments right after the readable part of the file are always the ones in flight.
+    //A seek by the player moves them to the seek point, and the gaps are filled in afterwards.
+    private void downloadSegments(final Job job, long start, final long total) throws IOException
+    {
+        //Without a length the best we can do is ask for everything that is left
+        if (total < 0) {
+            OutputStreamResponseHandler handler = new OutputStreamResponseHandler(job, start, -1);
+            if (!HttpClientCaller.getInstance().callStream(job.url, start, -1, handler, null) || !handler.mPartial)
+                throw new IOException("Failed to download from: " + start);
+            return;
+        }
+        
+        final SegmentPlan   plan   = new SegmentPlan(job, start, total);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        Callable<Boolean> connection = new Callable<Boolean>() {
+            public Boolean call() throws IOException
+            {
+                try {
+                    while (!failed.get() && !job.cancelled && !job.paused) {
+                        long[] segment = plan.next();
+                        if (segment == null) return true;
+                        long from = segment[0];
+                        long to   = segment[1];
+                        OutputStreamResponseHandler handler = new OutputStreamResponseHandler(job, from, to);
+                        handler.mPlan = plan;
+                        try {
+                            boolean result;
+                            try {
+                                result = HttpClientCaller.getInstance().callStream(job.url, from, to, handler, null);
+                            } catch (IOException e) {
+                                //Aborting the request can surface as an exception
+                                if (handler.mYielded) continue;
+                                throw e;
+                            }
+                            //What is left of a segment we gave up for a seek goes back in the plan
+                            if (handler.mYielded) continue;
+                            if (!result || !handler.mPartial || !job.track.mRanges.contains(from, to + 1)) {
+                                failed.set(true);
+                                return false;
+                            }
+                        } finally {
+                            plan.done(from, to);
+                        }
+                    }
+                    return false;
+                } catch (IOException e) {
+                    failed.set(true);
+                    throw e;
+                }
+            }
+        };
+        
+        int connections = 1;
+        if (job.priority >= Priority.NOWPLAYING) connections = MAX_CONNECTIONS;
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        for (int i = 1; i < connections; i++) {
+            futures.add(mSegmentPool.submit(connection));
+        }
+        
+        boolean success;
+        try {
+            success = connection.call();
+        } catch (IOException e) {
+            success = false;
+        }
+        for (Future<Boolean> f : futures) {
+            try {
+                if (!f.get()) success = false;
+            } catch (ExecutionException e) {
+                Logger.log(e);
+                success = false;
+            } catch (InterruptedException e) {
+                success = false;
+            }
+        }
+        if (!success || !job.track.mRanges.contains(0, total))
+            throw new IOException("Segmented download failed");
+    }
     
+    //Hands out the segments of a file to the connections downloading it.  Segments are taken in
+    //order from a cursor that a seek moves, skipping bytes we have or that are in flight.  Once
+    //the cursor reaches the end of the file the gaps left behind are filled from the start.
+    static private class SegmentPlan
+    {
+        private final Job          mJob;
+        private final long         mTotal;
+        private final ByteRangeMap mInFlight = new ByteRangeMap();
+        private long               mCursor;
+        private boolean            mYielded  = false;
+        
+        SegmentPlan(Job job, long start, long total)
+        {
+            mJob    = job;
+            mTotal  = total;
+            mCursor = start;
+        }
+        
+        //The first and last byte of the next segment to fetch, or null when every byte is
+        //downloaded or in flight
+        synchronized long[] next()
+        {
+            long seek = mJob.seek.getAndSet(-1);
+            if (seek >= 0) {
+                Logger.log("SegmentPlan: moving to seek at byte " + seek);
+                mCursor  = seek;
+                mYielded = false;
+            }
+            long from = firstMissing(mCursor);
+            if (from >= mTotal) from = firstMissing(0);
+            if (from >= mTotal) return null;
+            
+            long to = Math.min(from + SEGMENT, mTotal);
+            to = Math.min(to, mJob.track.mRanges.nextStart(from));
+            to = Math.min(to, mInFlight.nextStart(from));
+            mInFlight.add(from, to);
+            mCursor = to;
+            return new long[] {from, to - 1};
+        }
+        
+        synchronized void done(long from, long to)
+        {
+            mInFlight.remove(from, to + 1);
+        }
+        
+        //Whether a connection working on the bytes from position to end should give them up so
+        //that a seek somewhere else is fetched straight away.  Only one connection is asked to.
+        synchronized boolean shouldYield(long position, long end)
+        {
+            long seek = mJob.seek.get();
+            if (seek < 0 || mYielded) return false;
+            if (seek >= position && seek <= end) return false;
+            mYielded = true;
+            return true;
+        }
+        
+        private long firstMissing(long offset)
+        {
+            while (offset < mTotal) {
+                long next = Math.max(mJob.track.mRanges.contiguousFrom(offset), mInFlight.contiguousFrom(offset));
+                if (next == offset) return offset;
+                offset = next;
+            }
+            return mTotal;
+        }
+    }
+    
+    //Writes the body of a response for the bytes from mStart to mEnd inclusive into a job's file.
+    //An mEnd of -1 means everything from mStart on.
     static private class OutputStreamResponseHandler extends HttpClientCaller.CancellableResponseHandler  
     {
         Job          mJob;
+        long         mStart;
+        long         mEnd;
         String       mContentType;
-        Object       mLock   = new Object();
-        Boolean      mReturn = null;
+        Object       mLock    = new Object();
+        Boolean      mReturn  = null;
+        boolean      mPartial = false;
+        long         mTotal   = -1;
+        String       mETag;
+        boolean      mChanged = false;
+        SegmentPlan  mPlan;
+        boolean      mYielded = false;
         
-        OutputStreamResponseHandler(Job job)
+        OutputStreamResponseHandler(Job job, long start, long end)
         {
             super();
-            mJob = job;
+            mJob   = job;
+            mStart = start;
+            mEnd   = end;
         }
         
         public String getContentType()
@@ -421,6 +873,28 @@ public class TrackDownloader
             return mContentType;
         }
         
+        //Content-Range: bytes 0-65535/1234567
+        private void readContentRange(HttpResponse response)
+        {
+            Header range = response.getFirstHeader("Content-Range");
+            if (range == null) return;
+            String value = range.getValue();
+            int slash = value.lastIndexOf('/');
+            if (slash < 0) return;
+            try {
+                mTotal = Long.parseLong(value.substring(slash + 1).trim());
+            } catch (NumberFormatException e) {
+                mTotal = -1;
+            }
+        }
+        
+        //Servers that do not send an ETag are only checked by length
+        private boolean sameETag(String first, String second)
+        {
+            if (first == null || second == null) return true;
+            return first.equals(second);
+        }
+        
         public Boolean handleResponse(HttpResponse response) throws ClientProtocolException, IOException 
         {
             if (mReturn != null) return mReturn;
@@ -428,47 +902,86 @@ public class TrackDownloader
             
             for (Header h :response.getAllHeaders()) {
                 if (h.getName().equals("Content-Type")) mContentType = h.getValue();
+                if (h.getName().equalsIgnoreCase("ETag")) mETag = h.getValue();
+            }
+            
+            mPartial = response.getStatusLine().getStatusCode() == 206;
+            if (mPartial) {
+                readContentRange(response);
+                //Do not mix the bytes of two different files
+                if (mJob.total > 0 && (mTotal != mJob.total || !sameETag(mJob.etag, mETag))) {
+                    Logger.log("File changed on the server. Length: " + mTotal + " ETag: " + mETag);
+                    mChanged = true;
+                    abort();
+                    return false;
+                }
+                if (mStart == 0) mJob.track.setContentLength(mTotal);
+            } else if (mStart > 0) {
+                //We asked for the middle of the file and got all of it
+                Logger.log("Server ignored range request starting at: " + mStart);
+                return false;
             }
             
             HttpEntity entity = response.getEntity();
             if (entity != null) {
                 Long length = entity.getContentLength();
+                if (!mPartial) mJob.track.setContentLength(length);
                 InputStream input = entity.getContent();
-                byte[] buffer = new byte[4096];
-                int size  = 0;
-                int total = 0;
-                while (true) {
-                    if (mJob.cancelled) {
-                        Logger.log("Cancelling job");
-                        abort();
-                        return false;
-                    }
-                    try {
-                        size = input.read(buffer);
-                    } catch (SocketTimeoutException e) {
-                        synchronized (mLock) {
-                            //Sometimes our content length is somewhat off.  We want to report success
-                            //in this case
-                            if ((length - total) < 10000) {
-                                Logger.log("Socket timed out close to the end.  Trying to handle");
-                                mJob.track.mProgress.run(total, total);
-                                mReturn = true;
-                                return false;
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int  size     = 0;
+                int  total    = 0;
+                long position = mStart;
+                //Whatever we got is recorded even if the transfer stops part way
+                try {
+                    while (true) {
+                        if (mJob.cancelled) {
+                            Logger.log("Cancelling job");
+                            abort();
+                            return false;
+                        }
+                        if (mJob.paused) {
+                            Logger.log("Pausing job");
+                            abort();
+                            return false;
+                        }
+                        if (mPlan != null && mPlan.shouldYield(position, mEnd)) {
+                            Logger.log("Giving up segment at byte " + position + " for a seek");
+                            mYielded = true;
+                            abort();
+                            return false;
+                        }
+                        try {
+                            size = input.read(buffer);
+                        } catch (SocketTimeoutException e) {
+                            synchronized (mLock) {
+                                //Sometimes our content length is somewhat off.  We want to report success
+                                //in this case
+                                if (!mPartial && (length - total) < 10000) {
+                                    Logger.log("Socket timed out close to the end.  Trying to handle");
+                                    mJob.track.setContentLength(total);
+                                    mReturn = true;
+                                    return false;
+                                }
+                                Logger.log("Socket timed out in the middle of file. Got: " + total + " bytes. Expected: " + length + " bytes");
+                                mReturn = false;
+                                return false;   
                             }
-                            Logger.log("Socket timed out in the middle of file. Got: " + total + " bytes. Expected: " + length + " bytes");
-                            mReturn = false;
-                            return false;   
                         }
-                    }
-                    if (total == 0) {
-                        if (buffer[0] != 'I') {
-                            Logger.log("####################################################### file starts with: " + (int)buffer[0] + " byte ########################################");
+                        if (total == 0 && mStart == 0 && size > 0) {
+                            if (buffer[0] != 'I') {
+                                Logger.log("####################################################### file starts with: " + (int)buffer[0] + " byte ########################################");
+                            }
                         }
+                        if (size == -1) break;
+                        //A server that ignored the range is sending the whole file, so we keep all of it
+                        if (mPartial && mEnd >= 0 && position + size > mEnd + 1) size = (int)(mEnd + 1 - position);
+                        mJob.write(buffer, size, position);
+                        position += size;
+                        total    += size;
+                        if (mPartial && mEnd >= 0 && position > mEnd) break;
                     }
-                    if (size == -1) break;
-                    mJob.stream.write(buffer, 0, size);
-                    total += size;
-                    mJob.track.mProgress.run(total, length);
+                } finally {
+                    mJob.checkpoint(false);
                 }
                 return true;
             } else {
@@ -499,78 +1012,96 @@ public class TrackDownloader
     
     public void clear()
     {
-        if (mJob != null)
-            mJob.cancelled = true;
-        if (mQueue != null)
+        synchronized (mQueue) {
+            for (Job job : mRunning) {
+                job.cancelled = true;
+            }
             mQueue.clear();
+        }
     }
     
-    private void freeCacheSpace()
+    public void destroy()
     {
-        StorageInfo info = new StorageInfo(mContext);
-        while (info.needCacheSpace()) {
-            freeSomeCacheSpace();
+        mDestroying = true;
+        clear();
+        for (DownloadWorker worker : mWorkers) {
+            worker.interrupt();
         }
+        mSegmentPool.shutdown();
     }
     
-    private void freeSomeCacheSpace()
-    {        
-        File file = getOldestFile(Music.getMP3tunesCacheDir(), null);
-        if (file == null) {
-            Logger.log("Empty cache dir. Nothing to delete");
-            return;
+    //Downloads are written to .tmp files and renamed when they finish, so a .tmp file that is
+    //here when we start up is a download that was interrupted
+    private void cleanUpCache()
+    {
+        File[] files = new File(Music.getMP3tunesCacheDir()).listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (DownloadJournal.isStale(file)) {
+                Logger.log("cleanUpCache(): deleting: " + file.getAbsolutePath());
+                file.delete();
+            }
         }
-        Logger.log("deleting: " + file.getAbsolutePath());
-        file.delete();
     }
     
-    private File getOldestFile(String dir, FileFilter filter) 
+    //The index keeps the size of the cache, so making room no longer walks the cache directory
+    private void freeCacheSpace()
     {
-        File fl = new File(dir);
-        if (filter == null) {
-            filter = new FileFilter() {                  
-                public boolean accept(File file) {
-                    return file.isFile();
-                }
-            };
-        }
-        File[] files = fl.listFiles(filter);
-        
-        long lastMod = Long.MAX_VALUE;
-        File choice = null;
-        for (File file : files) {
-                if (file.lastModified() < lastMod) {
-                        choice = file;
-                        lastMod = file.lastModified();
-                }
+        StorageInfo info = new StorageInfo(mContext);
+        while (info.needCacheSpace(mIndex.getSize() + downloadingSize())) {
+            if (!mIndex.evictLeastRecentlyUsed()) {
+                Logger.log("Nothing left in the cache to delete");
+                return;
+            }
         }
-        return choice;
     }
-
-    public void cancelOldDownload(CachedTrack track)
+    
+    private boolean pinnedCacheFull()
+    {
+        long budget = Music.getMaxCacheSize(mContext);
+        return budget != -1 && mIndex.getPinnedSize() >= budget;
+    }
+    
+    //Room for the running downloads we know the size of
+    private long downloadingSize()
     {
+        long size = 0;
         synchronized (mQueue) {
-            //Nothing to cancel
-            if (mJob == null) {
-                Logger.log("cancelOldDownload(): Not cancelling: no track downloading");
-                return;
-            }
-            
-            //we are already downloading the track
-            if (track.getFileKey().equals(mJob.track.getFileKey())) {
-                Logger.log("cancelOldDownload(): Not cancelling: downloading: " + mJob.track.getFileKey() + " need to download: " + track.getFileKey());
-                return;
-            }
-        
-            //the track is already downloaded
-            if (track.getStatus() == CachedTrack.Status.finished) {
-                Logger.log("cancelOldDownload(): Not cancelling: " + track.getFileKey() + " already downloaded");
-                return;
+            for (Job job : mRunning) {
+                long length = job.track.getContentLength();
+                if (length > 0) size += length;
             }
-        
-            Logger.log("cancelOldDownload(): Cancelling  download of: " + mJob.track.getTitle() + " in favor of: " + track.getFileKey());
-            mTimer = new Timer("Begining cancel");
-            mJob.cancelled = true;
         }
+        return size;
+    }
+
+    //How fast downloads have been arriving lately in bytes a second, 0 if we do not know yet
+    public long getThroughput()
+    {
+        return mThroughput.getRate();
+    }
+    
+    //Called when the playing track changes.  Whatever was downloading for the old track is no
+    //longer thrown away, it is paused if a worker is needed and resumes later.
+    public void makeRoomFor(CachedTrack track)
+    {
+        //the track is already downloaded
+        if (track.getStatus() == CachedTrack.Status.finished) {
+            Logger.log("makeRoomFor(): Not pausing: " + track.getFileKey() + " already downloaded");
+            return;
+        }
+        preempt();
+    }
+    
+    //Called when the player asks for a part of a track that we do not have yet.  Whatever it
+    //is waiting on has to be fetched ahead of anything else.
+    public void fetchRange(CachedTrack track, long offset)
+    {
+        if (track.getStatus() == CachedTrack.Status.finished) return;
+        Job job = getJobByPath(track.getPath());
+        if (job == null) return;
+        Logger.log("fetchRange(): player wants byte " + offset + " of: " + track.getTitle());
+        job.seek.set(offset);
+        if (job.priority < Priority.NOWPLAYING) resetPriority(job.id, Priority.NOWPLAYING);
     }
 }
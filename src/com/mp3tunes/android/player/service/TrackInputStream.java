@@ -0,0 +1,151 @@
+package com.mp3tunes.android.player.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Reads a cached track's file while it is still being downloaded.  Later segments of a download
+ * are written into the file before the earlier ones are done, so reads are cut off at the track's
+ * readable length.  When there is nothing readable yet a read blocks until the downloader writes
+ * more, rather than returning 0 and leaving the caller to poll.
+ */
+class TrackInputStream extends InputStream
+{
+    private FileInputStream mIn;
+    private FileChannel     mChannel;
+    private CachedTrack     mTrack;
+    private long            mPosition;
+    private long            mEnd;
+    private Socket          mClient;
+    private ByteBuffer      mPending = ByteBuffer.allocate(4 * 1024);
+    
+    //A download that writes nothing for this long is given up on
+    static final long STALL_TIMEOUT = 60 * 1000;
+    
+    //While we wait for the download we check this often whether the client is still there
+    private static final long WAIT_SLICE    = 1000;
+    
+    //The most handed to the socket at once, so that a growing file is checked again between them
+    private static final long TRANSFER_SIZE = 64 * 1024;
+
+    //Reads the bytes from start up to but not including end, which can be past the end of the
+    //file when we do not know how long it is
+    TrackInputStream(File file, CachedTrack track, long start, long end) throws IOException
+    {
+        mIn       = new FileInputStream(file);
+        mChannel  = mIn.getChannel();
+        mTrack    = track;
+        mPosition = start;
+        mEnd      = end;
+    }
+    
+    //The socket the stream is sent to.  A player that seeks drops its connection and opens a
+    //new one, so while we wait on the download we stop as soon as the old one is closed.
+    void setClient(Socket client)
+    {
+        mClient = client;
+    }
+    
+    //How many bytes can be read from the current position, blocking until there are some.
+    //Returns 0 at the end of the range, when the track's download fails or stalls, or when the
+    //client has gone away.
+    private long readable() throws IOException
+    {
+        if (mPosition >= mEnd) return 0;
+        long stalled = System.currentTimeMillis() + STALL_TIMEOUT;
+        while (mTrack.getStatus() != CachedTrack.Status.finished) {
+            try {
+                mTrack.waitForBytes(mPosition, WAIT_SLICE);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            int status = mTrack.getStatus();
+            if (status == CachedTrack.Status.failed) return 0;
+            if (status == CachedTrack.Status.finished) break;
+            
+            long readable = mTrack.getReadableLength(mPosition) - mPosition;
+            if (readable > 0) return Math.min(readable, mEnd - mPosition);
+            if (clientGone()) {
+                Logger.log("TrackInputStream: client went away waiting on byte " + mPosition + " of: " + mTrack.getTitle());
+                return 0;
+            }
+            if (System.currentTimeMillis() >= stalled) {
+                Logger.log("TrackInputStream: nothing written to: " + mTrack.getTitle() + " for " + STALL_TIMEOUT + "ms");
+                return 0;
+            }
+        }
+        return Math.max(0, Math.min(mChannel.size(), mEnd) - mPosition);
+    }
+    
+    //The client has sent its request and waits for the response, so a read that finds the end
+    //of the stream means it has closed the connection.  Streams of channel sockets do not
+    //reliably honour a read timeout, so we read from the channel without blocking instead.
+    //Anything the client sends is kept in mPending rather than dropped.  Once that is full, or
+    //without a channel, we can not tell and leave it to the stall timeout and the next write.
+    private boolean clientGone()
+    {
+        if (mClient == null) return false;
+        if (mClient.isClosed()) return true;
+        SocketChannel channel = mClient.getChannel();
+        if (channel == null || !mPending.hasRemaining()) return false;
+        try {
+            channel.configureBlocking(false);
+            try {
+                return channel.read(mPending) < 0;
+            } finally {
+                channel.configureBlocking(true);
+            }
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        byte[] b = new byte[1];
+        int read = read(b, 0, 1);
+        if (read <= 0) return -1;
+        return b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+        long readable = readable();
+        if (readable <= 0) return -1;
+        if (readable < length) length = (int)readable;
+        int read = mChannel.read(ByteBuffer.wrap(buffer, offset, length), mPosition);
+        if (read > 0) mPosition += read;
+        return read;
+    }
+    
+    //Sends the rest of the track to out without copying it through the Java heap when out is a
+    //socket channel.  Returns the number of bytes sent.
+    long transferTo(WritableByteChannel out) throws IOException
+    {
+        long sent = 0;
+        while (true) {
+            long readable = readable();
+            if (readable <= 0) return sent;
+            long n = mChannel.transferTo(mPosition, Math.min(readable, TRANSFER_SIZE), out);
+            if (n <= 0) return sent;
+            mPosition += n;
+            sent      += n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        mIn.close();
+    }
+}
@@ -11,20 +11,18 @@ import android.os.StatFs;
 
 public class StorageInfo
 {
-    String mCacheDir;
     long   mMaxCacheSize;
     long   mMinFreeStorageSize;
     
     public StorageInfo(Context context)
     {
-        mCacheDir           = Music.getMP3tunesCacheDir();
         mMaxCacheSize       = Music.getMaxCacheSize(context);
         mMinFreeStorageSize = Music.getMinFreeStorageSize();
     }
     
-    public boolean needCacheSpace()
+    //The size of the cache is passed in by the caller, which keeps a running count of it
+    public boolean needCacheSpace(long currentCacheSize)
     {
-        long currentCacheSize = size(new File(mCacheDir));
         long availible        = MemoryStatus.getAvailableExternalMemorySize();
         Logger.log("Cache Size: " + currentCacheSize + " availible: " + availible);
         return ((currentCacheSize > mMaxCacheSize && mMaxCacheSize != -1) || availible < mMinFreeStorageSize);